@@ -144,6 +144,12 @@ public class Coff {
     /** The sections in this COFF executable. */
     protected CoffSection sections[];
 
+    /**
+     * The buffer the sections load pages through, so loading a page doesn't
+     * allocate. The pages of one executable are loaded one at a time.
+     */
+    byte[] pageBuffer = new byte[Processor.pageSize];
+
     private static final int headerLength = 20;
     private static final int aoutHeaderLength = 28;
 
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,8 +179,8 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
+	long paddr = (long) ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
@@ -196,10 +195,16 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	// stage the initialized part in the executable's page buffer, and zero
+	// the rest of the page
+	if (initlen > 0) {
+	    byte[] page = coff.pageBuffer;
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
+	    memory.write(paddr, page, 0, initlen);
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	if (initlen < pageSize)
+	    memory.write(paddr + initlen, zeroes, 0, pageSize - initlen);
     }
 
     /** The COFF object to which this section belongs. */
@@ -224,5 +229,8 @@ public class CoffSection {
     /** The length of a COFF section header. */
     public static final int headerLength = 40;
 
+    /** A page of zeroes, never written. */
+    private static final byte[] zeroes = new byte[Processor.pageSize];
+
     private static final char dbgCoffSection = 'c';
 }
@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +54,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -120,17 +120,93 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Halt the processor until the next interrupt occurs. Simulated time
+     * skips straight to the earliest pending interrupt, which is then
+     * handled. This should only be called by the idle thread, with interrupts
+     * disabled, when no other thread is ready to run.
+     *
+     * <p>
+     * Events posted by other Java threads are picked up first, so input that
+     * already arrived doesn't wait for a later interrupt. Otherwise posts are
+     * noticed on the next call, after the earliest pending interrupt.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (anyPosted)
+	    schedulePosted();
+
+	Stats stats = privilege.stats;
+
+	if (heapSize > 0 && nextTime > stats.totalTicks) {
+	    if (Lib.test(dbgInt))
+		System.out.println("Idle from time = " + stats.totalTicks +
+				   " to time = " + nextTime);
+
+	    stats.idleTicks += nextTime - stats.totalTicks;
+	    stats.totalTicks = nextTime;
+	}
+
+	checkIfDue();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
+	int event = allocateEvent(internType(type), handler, false);
+
+	schedule(event, when);
+    }
+
+    private int newEvent(String type, Runnable handler) {
+	return allocateEvent(internType(type), handler, true);
+    }
+
+    private void schedule(int event, long when) {
 	Lib.assertTrue(when>0);
+	Lib.assertTrue(event >= 0 && event < eventHandler.length &&
+		       eventHandler[event] != null);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " +
+			       typeNames.get(eventType[event]) +
+			       " interrupt handler at time = " + time);
+
+	eventTime[event] = time;
+	eventOrder[event] = numEventsScheduled++;
+
+	if (heapIndex[event] == -1) {
+	    heapIndex[event] = heapSize;
+	    heap[heapSize++] = event;
+	}
 
-	pending.add(toOccur);
+	// the event may have moved either way if it was already pending
+	siftDown(siftUp(heapIndex[event]));
+	nextTime = eventTime[heap[0]];
+    }
+
+    private void post(int event) {
+	synchronized (postLock) {
+	    if (numPosted == posted.length)
+		posted = Arrays.copyOf(posted, Math.max(2*numPosted, 4));
+
+	    posted[numPosted++] = event;
+	    anyPosted = true;
+	}
+    }
+
+    /**
+     * Schedule every event posted since the last call, for the next tick.
+     */
+    private void schedulePosted() {
+	synchronized (postLock) {
+	    for (int i=0; i<numPosted; i++)
+		schedule(posted[i], 1);
+
+	    numPosted = 0;
+	    anyPosted = false;
+	}
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,91 +229,262 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long ticksUntilDue() {
+	// every tick must be printed
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (heapSize == 0)
+	    return Long.MAX_VALUE;
+
+	long ticks = nextTime - privilege.stats.totalTicks - 1;
+
+	return Math.max(ticks, 0);
+    }
+
+    private void advance(long userTicks) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += userTicks * Stats.UserTick;
+	stats.totalTicks += userTicks * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
+	if (anyPosted)
+	    schedulePosted();
+
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextTime > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (nextTime <= time) {
+	    int next = removeFirst();
+	    Runnable handler = eventHandler[next];
 
-	    Lib.assertTrue(next.time <= time);
+	    Lib.assertTrue(eventTime[next] <= time);
+
+	    // one-shot events go back on the free list before the handler runs,
+	    // so the handler can reuse the slot
+	    if (!eventPersistent[next])
+		freeEvent(next);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + typeNames.get(eventType[next]));
+
+	    if (Trace.interrupts)
+		Trace.record(Trace.interrupt, eventType[next], 0);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
-    private void print() {
-	System.out.println("Time: " + privilege.stats.totalTicks
-			   + ", interrupts " + (enabled ? "on" : "off"));
-	System.out.println("Pending interrupts:");
+    /**
+     * Return the name of an interrupt type, as recorded by <tt>Trace</tt>.
+     *
+     * @param	type	the number of the interrupt type.
+     * @return	the name the type was scheduled with.
+     */
+    String getTypeName(int type) {
+	return typeNames.get(type);
+    }
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+    private int internType(String type) {
+	Integer id = typeIds.get(type);
+	if (id == null) {
+	    id = typeNames.size();
+	    typeIds.put(type, id);
+	    typeNames.add(type);
 	}
 
-	System.out.println("  (end of list)");
+	return id;
+    }
+
+    private int allocateEvent(int type, Runnable handler, boolean persistent) {
+	Lib.assertTrue(handler != null);
+
+	if (numFree == 0)
+	    growEvents();
+
+	int event = freeEvents[--numFree];
+	eventType[event] = type;
+	eventHandler[event] = handler;
+	eventPersistent[event] = persistent;
+	heapIndex[event] = -1;
+
+	return event;
+    }
+
+    private void freeEvent(int event) {
+	eventHandler[event] = null;
+	freeEvents[numFree++] = event;
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    private void growEvents() {
+	int oldCapacity = eventHandler.length;
+	int capacity = Math.max(2*oldCapacity, 16);
+
+	eventTime = Arrays.copyOf(eventTime, capacity);
+	eventOrder = Arrays.copyOf(eventOrder, capacity);
+	eventType = Arrays.copyOf(eventType, capacity);
+	eventHandler = Arrays.copyOf(eventHandler, capacity);
+	eventPersistent = Arrays.copyOf(eventPersistent, capacity);
+	heapIndex = Arrays.copyOf(heapIndex, capacity);
+	heap = Arrays.copyOf(heap, capacity);
+	freeEvents = Arrays.copyOf(freeEvents, capacity);
+
+	// hand out the lowest slots first
+	for (int event=capacity-1; event>=oldCapacity; event--)
+	    freeEvents[numFree++] = event;
+    }
+
+    /**
+     * Remove the earliest pending event from the heap.
+     *
+     * @return	the event removed.
+     */
+    private int removeFirst() {
+	int first = heap[0];
+	heapIndex[first] = -1;
+
+	if (--heapSize > 0) {
+	    heap[0] = heap[heapSize];
+	    heapIndex[heap[0]] = 0;
+	    siftDown(0);
+	    nextTime = eventTime[heap[0]];
+	}
+	else {
+	    nextTime = Long.MAX_VALUE;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	return first;
+    }
+
+    /**
+     * Events are ordered by time, then by the order in which they were
+     * scheduled, so that events due at the same time run first come, first
+     * served.
+     */
+    private boolean before(int a, int b) {
+	return eventTime[a] < eventTime[b] ||
+	    (eventTime[a] == eventTime[b] && eventOrder[a] < eventOrder[b]);
+    }
+
+    private int siftUp(int i) {
+	int event = heap[i];
+
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!before(event, heap[parent]))
+		break;
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	    heap[i] = heap[parent];
+	    heapIndex[heap[i]] = i;
+	    i = parent;
 	}
 
-	long time;
-	String type;
-	Runnable handler;
+	heap[i] = event;
+	heapIndex[event] = i;
+
+	return i;
+    }
+
+    private void siftDown(int i) {
+	int event = heap[i];
+
+	while (2*i+1 < heapSize) {
+	    int child = 2*i+1;
+	    if (child+1 < heapSize && before(heap[child+1], heap[child]))
+		child++;
+
+	    if (!before(heap[child], event))
+		break;
+
+	    heap[i] = heap[child];
+	    heapIndex[heap[i]] = i;
+	    i = child;
+	}
 
-	private long id;
+	heap[i] = event;
+	heapIndex[event] = i;
+    }
+
+    private void print() {
+	System.out.println("Time: " + privilege.stats.totalTicks
+			   + ", interrupts " + (enabled ? "on" : "off"));
+	System.out.println("Pending interrupts:");
+
+	// print a sorted copy, leaving the heap alone
+	Integer[] sorted = new Integer[heapSize];
+	for (int i=0; i<heapSize; i++)
+	    sorted[i] = heap[i];
+
+	Arrays.sort(sorted, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+		}
+	    });
+
+	for (int event : sorted) {
+	    System.out.println("  " + typeNames.get(eventType[event]) +
+			       ", scheduled at " + eventTime[event]);
+	}
+
+	System.out.println("  (end of list)");
     }
-    
-    private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /*
+     * Pending interrupts are kept in a binary heap of event slots. Each slot
+     * is an index into the parallel arrays below. Slots used by schedule()
+     * are freed as soon as their interrupt occurs; slots returned by
+     * newEvent() belong to a device, which reschedules the same slot each
+     * time.
+     */
+    private long[] eventTime = new long[0];
+    private long[] eventOrder = new long[0];
+    private int[] eventType = new int[0];
+    private Runnable[] eventHandler = new Runnable[0];
+    private boolean[] eventPersistent = new boolean[0];
+    /** The position of each slot in the heap, or -1 if it is not pending. */
+    private int[] heapIndex = new int[0];
+    private int[] heap = new int[0];
+    private int heapSize = 0;
+    private int[] freeEvents = new int[0];
+    private int numFree = 0;
+
+    /** The time of the earliest pending interrupt. */
+    private long nextTime = Long.MAX_VALUE;
+    private long numEventsScheduled = 0;
+
+    /**
+     * Events posted by other Java threads, waiting to be scheduled by the
+     * Nachos thread that next advances time. Guarded by <tt>postLock</tt>.
+     */
+    private final Object postLock = new Object();
+    private int[] posted = new int[0];
+    private int numPosted = 0;
+    /** Lets the Nachos side check for posted events without locking. */
+    private volatile boolean anyPosted = false;
+
+    private HashMap<String,Integer> typeIds = new HashMap<String,Integer>();
+    private ArrayList<String> typeNames = new ArrayList<String>();
 
     private static final char dbgInt = 'i';
 
@@ -246,8 +493,28 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public int newEvent(String type, Runnable handler) {
+	    return Interrupt.this.newEvent(type, handler);
+	}
+
+	public void schedule(int event, long when) {
+	    Interrupt.this.schedule(event, when);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void post(int event) {
+	    Interrupt.this.post(event);
+	}
+
+	public long ticksUntilDue() {
+	    return Interrupt.this.ticksUntilDue();
+	}
+
+	public void advance(long userTicks) {
+	    Interrupt.this.advance(userTicks);
+	}
     }
 }
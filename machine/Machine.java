@@ -27,6 +27,9 @@ public final class Machine {
 
 	Config.load(configFileName);
 
+	if (traceFlags == null)
+	    traceFlags = Config.getString("Machine.trace", "");
+
 	// get the current directory (.)
 	baseDirectory = new File(new File("").getAbsolutePath());
 	// get the nachos directory (./nachos)
@@ -73,9 +76,13 @@ public final class Machine {
     }
 
     /**
-     * Terminate Nachos. Same as <tt>TCB.die()</tt>.
+     * Terminate Nachos, after dumping any events that were traced. Otherwise
+     * the same as <tt>TCB.die()</tt>.
      */
     public static void terminate() {
+	if (traceFlags != null && traceFlags.length() > 0)
+	    Trace.dump();
+	
 	TCB.die();
     }
 
@@ -144,6 +151,10 @@ public final class Machine {
 			Lib.assertNotReached("bad value for -s switch");
 		    }
 		}
+		else if (arg.equals("-t")) {
+		    Lib.assertTrue(i < args.length, "switch without argument");
+		    traceFlags = args[i++];
+		}
 		else if (arg.equals("-x")) {
 		    Lib.assertTrue(i < args.length, "switch without argument");
 		    shellProgramName = args[i++];		    
@@ -411,8 +422,20 @@ public final class Machine {
 
     private static Stats stats = new Stats();
 
+    /**
+     * Return the trace categories to enable, from the <tt>-t</tt> switch or
+     * else from <tt>Machine.trace</tt>.
+     *
+     * @return	the trace flags.
+     * @see	nachos.machine.Trace
+     */
+    static String getTraceFlags() {
+	return (traceFlags == null) ? "" : traceFlags;
+    }
+
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
+    private static String traceFlags = null;
 
     private static File baseDirectory, nachosDirectory, testDirectory;
     private static String configFileName = "nachos.conf";
@@ -434,6 +457,10 @@ public final class Machine {
 	"\t\tSpecify the seed for the random number generator (seed is a\n" +
 	"\t\tlong).\n" +
 	"\n" +
+	"\t-t <trace categories>\n" +
+	"\t\tRecord some categories of events, e.g. -t cp, and print them\n" +
+	"\t\twhen Nachos terminates\n" +
+	"\n" +
 	"\t-x <program>\n" +
 	"\t\tSpecify a program that UserKernel.run() should execute,\n" +
 	"\t\tinstead of the value of the configuration variable\n" +
@@ -0,0 +1,293 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The physical memory attached to a simulated processor.
+ *
+ * <p>
+ * Memory is divided into chunks of up to <tt>chunkSize</tt> bytes, each held
+ * in its own <tt>ByteBuffer</tt>, and is addressed with a <tt>long</tt>, so
+ * the size of a machine isn't limited by the length of a Java array. If
+ * <tt>Processor.offHeapMemory</tt> is set, the chunks are direct buffers
+ * allocated outside the Java heap, so even a very large memory adds nothing
+ * to garbage collection.
+ *
+ * <p>
+ * Every write made through this class, whether by a user store instruction
+ * or by the kernel, tells the processor which page changed, so that it
+ * discards any instructions it already decoded from it.
+ */
+public final class PhysicalMemory {
+    /**
+     * Allocate a new physical memory.
+     *
+     * @param	processor	the processor the memory is attached to.
+     * @param	numPages	the number of pages of memory.
+     * @param	offHeap		<tt>true</tt> to allocate the memory outside
+     *				the Java heap.
+     */
+    PhysicalMemory(Processor processor, int numPages, boolean offHeap) {
+	Lib.assertTrue(numPages >= 0);
+
+	this.processor = processor;
+	this.numPages = numPages;
+	this.offHeap = offHeap;
+
+	size = (long) numPages * pageSize;
+
+	int numChunks = (int) ((size + chunkSize - 1) / chunkSize);
+	chunks = new ByteBuffer[Math.max(numChunks, 1)];
+
+	for (int i=0; i<chunks.length; i++) {
+	    int length = (int) Math.min(size - (long) i*chunkSize, chunkSize);
+	    ByteBuffer chunk = offHeap ? ByteBuffer.allocateDirect(length)
+				       : ByteBuffer.allocate(length);
+	    chunks[i] = chunk.order(ByteOrder.LITTLE_ENDIAN);
+	}
+    }
+
+    /**
+     * Return the number of pages in this memory.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Return the size of this memory, in bytes.
+     *
+     * @return	<tt>getNumPages() * Processor.pageSize</tt>.
+     */
+    public long getSize() {
+	return size;
+    }
+
+    /**
+     * Test whether this memory is allocated outside the Java heap.
+     *
+     * @return	<tt>true</tt> if the memory is held in direct buffers.
+     */
+    public boolean isOffHeap() {
+	return offHeap;
+    }
+
+    /**
+     * Read a byte of memory.
+     *
+     * @param	paddr	the physical address to read.
+     * @return	the byte at <i>paddr</i>.
+     */
+    public byte getByte(long paddr) {
+	return chunk(paddr).get(index(paddr));
+    }
+
+    /**
+     * Read a little-endian short from memory.
+     *
+     * @param	paddr	the halfword-aligned physical address to read.
+     * @return	the short at <i>paddr</i>.
+     */
+    public short getShort(long paddr) {
+	return chunk(paddr).getShort(index(paddr));
+    }
+
+    /**
+     * Read a little-endian int from memory.
+     *
+     * @param	paddr	the word-aligned physical address to read.
+     * @return	the int at <i>paddr</i>.
+     */
+    public int getInt(long paddr) {
+	return chunk(paddr).getInt(index(paddr));
+    }
+
+    /**
+     * Write a byte of memory.
+     *
+     * @param	paddr	the physical address to write.
+     * @param	value	the byte to store.
+     */
+    public void putByte(long paddr, byte value) {
+	chunk(paddr).put(index(paddr), value);
+	processor.memoryWritten(paddr);
+    }
+
+    /**
+     * Write a little-endian short to memory.
+     *
+     * @param	paddr	the halfword-aligned physical address to write.
+     * @param	value	the short to store.
+     */
+    public void putShort(long paddr, short value) {
+	chunk(paddr).putShort(index(paddr), value);
+	processor.memoryWritten(paddr);
+    }
+
+    /**
+     * Write a little-endian int to memory.
+     *
+     * @param	paddr	the word-aligned physical address to write.
+     * @param	value	the int to store.
+     */
+    public void putInt(long paddr, int value) {
+	chunk(paddr).putInt(index(paddr), value);
+	processor.memoryWritten(paddr);
+    }
+
+    /**
+     * Copy bytes from memory into an array.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void read(long paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	while (length > 0) {
+	    ByteBuffer chunk = chunk(paddr);
+	    int index = index(paddr);
+	    int amount = Math.min(length, chunk.capacity() - index);
+
+	    if (chunk.hasArray()) {
+		System.arraycopy(chunk.array(), chunk.arrayOffset() + index,
+				 data, offset, amount);
+	    }
+	    else {
+		ByteBuffer view = chunk.duplicate();
+		view.position(index);
+		view.get(data, offset, amount);
+	    }
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+    }
+
+    /**
+     * Copy bytes from an array into memory.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void write(long paddr, byte[] data, int offset, int length) {
+	checkRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+
+	long start = paddr;
+	int total = length;
+
+	while (length > 0) {
+	    ByteBuffer chunk = chunk(paddr);
+	    int index = index(paddr);
+	    int amount = Math.min(length, chunk.capacity() - index);
+
+	    if (chunk.hasArray()) {
+		System.arraycopy(data, offset,
+				 chunk.array(), chunk.arrayOffset() + index,
+				 amount);
+	    }
+	    else {
+		ByteBuffer view = chunk.duplicate();
+		view.position(index);
+		view.put(data, offset, amount);
+	    }
+
+	    paddr += amount;
+	    offset += amount;
+	    length -= amount;
+	}
+
+	invalidate(start, total);
+    }
+
+    /**
+     * Set a range of memory to a single value.
+     *
+     * @param	paddr	the first physical address to fill.
+     * @param	length	the number of bytes to fill.
+     * @param	value	the value to store in each byte.
+     */
+    public void fill(long paddr, int length, byte value) {
+	checkRange(paddr, length);
+
+	long start = paddr;
+	int total = length;
+
+	while (length > 0) {
+	    ByteBuffer chunk = chunk(paddr);
+	    int index = index(paddr);
+	    int amount = Math.min(length, chunk.capacity() - index);
+
+	    if (chunk.hasArray()) {
+		int first = chunk.arrayOffset() + index;
+		Arrays.fill(chunk.array(), first, first + amount, value);
+	    }
+	    else {
+		// store a long at a time, then the bytes left over
+		long pattern = (value & 0xFFL) * 0x0101010101010101L;
+		int i = 0;
+		for (; i+8<=amount; i+=8)
+		    chunk.putLong(index+i, pattern);
+		for (; i<amount; i++)
+		    chunk.put(index+i, value);
+	    }
+
+	    paddr += amount;
+	    length -= amount;
+	}
+
+	invalidate(start, total);
+    }
+
+    private ByteBuffer chunk(long paddr) {
+	return chunks[(int) (paddr >>> chunkShift)];
+    }
+
+    private static int index(long paddr) {
+	return (int) (paddr & (chunkSize-1));
+    }
+
+    private void checkRange(long paddr, int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 && paddr+length <= size);
+    }
+
+    private void invalidate(long paddr, int length) {
+	if (length == 0)
+	    return;
+
+	int firstPage = (int) (paddr / pageSize);
+	int lastPage = (int) ((paddr+length-1) / pageSize);
+
+	for (int ppn=firstPage; ppn<=lastPage; ppn++)
+	    processor.invalidatePage(ppn);
+    }
+
+    private static final int pageSize = Processor.pageSize;
+
+    /** The log base 2 of <tt>chunkSize</tt>. */
+    private static final int chunkShift = 30;
+    /**
+     * The largest number of bytes held in one buffer. A multiple of the page
+     * size, so no page is ever split between two buffers.
+     */
+    public static final int chunkSize = 1 << chunkShift;
+
+    private Processor processor;
+    private int numPages;
+    private long size;
+    private boolean offHeap;
+    private ByteBuffer[] chunks;
+}
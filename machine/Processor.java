@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +47,26 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new Decoded[numPhysPages][];
+	memory = new PhysicalMemory(this, numPhysPages,
+				    Config.getBoolean("Processor.offHeapMemory",
+						      false));
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.numTLBEntries", tlbSize);
+		Lib.assertTrue(tlbSize > 0);
+	    }
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    if (tlbSize > maxScannedTLBSize) {
+		tlbBuckets = new int[Integer.highestOneBit(tlbSize) * 4];
+		Arrays.fill(tlbBuckets, -1);
+		tlbChain = new int[tlbSize];
+	    }
 	}
 	else {
 	    translations = null;
@@ -92,16 +108,34 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// Rather than ticking after every instruction, only tick when an
+	// interrupt could be due, and account for the instructions in between
+	// in one go. Simulated time is only visible to kernel code, so it must
+	// be brought up to date before any runs.
+	long quantum = 0;
+	long executed = 0;
 	
 	while (true) {
 	    try {
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		privilege.interrupt.advance(executed);
+		executed = 0;
+		quantum = 0;
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    if (executed < quantum) {
+		executed++;
+	    }
+	    else {
+		privilege.interrupt.advance(executed);
+		privilege.interrupt.tick(false);
+		executed = 0;
+		quantum = privilege.interrupt.ticksUntilDue() / Stats.UserTick;
+	    }
 	}
     }
 
@@ -175,6 +209,68 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	this.packedPageTable = null;
+    }
+
+    /**
+     * Set the page table pointer to a packed page table. Entry <i>vpn</i> of
+     * the page table holds the translation for virtual page <i>vpn</i>, as
+     * packed by <tt>TranslationEntry.pack()</tt>. The processor sets the used
+     * and dirty bits in the array as it accesses memory, just as it would in
+     * a <tt>TranslationEntry</tt>.
+     *
+     * @param	pageTable	the packed page table to use.
+     */
+    public void setPageTable(int[] pageTable) {
+	Lib.assertTrue(!usingTLB);
+
+	this.translations = null;
+	this.packedPageTable = pageTable;
+    }
+
+    /**
+     * Set the current address space identifier. From now on, only TLB
+     * entries tagged with this ASID will match, so the TLB can hold entries
+     * for several address spaces at once, and needn't be flushed when
+     * switching between them.
+     *
+     * @param	asid	the new address space identifier.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	if (asid == this.asid)
+	    return;
+
+	this.asid = asid;
+	microTLB[fetchPort] = microTLB[dataPort] = null;
+    }
+
+    /**
+     * Return the current address space identifier, set by the last call to
+     * <tt>setASID()</tt>. Initially 0.
+     *
+     * @return	the current address space identifier.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
+    /**
+     * Invalidate every TLB entry tagged with an address space identifier.
+     *
+     * @param	asid	the address space identifier.
+     */
+    public void invalidateTLB(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	TranslationEntry invalid = new TranslationEntry();
+	for (int i=0; i<tlbSize; i++) {
+	    if (translations[i].valid && translations[i].asid == asid)
+		writeTLBEntry(i, invalid);
+	}
     }
 
     /**
@@ -206,7 +302,8 @@ public final class Processor {
      *
      * <p>
      * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * does not affect anything. The entry only matches while the current
+     * address space identifier equals its <tt>asid</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +312,27 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	TranslationEntry old = translations[number];
+
+	// rewriting an entry's bits isn't a refill; replacing it with
+	// another page is
+	if (entry.valid &&
+	    !(old.valid && old.vpn == entry.vpn && old.asid == entry.asid)) {
+	    privilege.stats.numTLBRefills++;
+	    if (old.valid)
+		privilege.stats.numTLBEvictions++;
+	}
+
+	if (tlbBuckets != null && old.valid)
+	    unindexTLBEntry(number);
+
 	translations[number] = new TranslationEntry(entry);
+
+	if (tlbBuckets != null && entry.valid)
+	    indexTLBEntry(number);
+
+	// any cached hit might now be shadowed by this entry
+	microTLB[fetchPort] = microTLB[dataPort] = null;
     }
 
     /**
@@ -229,13 +346,40 @@ public final class Processor {
     }
 
     /**
-     * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * Return the physical memory attached to this simulated processor.
      *
-     * @return	the main memory array.
+     * @return	the physical memory.
      */
-    public byte[] getMemory() {
-	return mainMemory;
+    public PhysicalMemory getPhysicalMemory() {
+	return memory;
+    }
+
+    /**
+     * Notify this processor that the specified page of physical memory was
+     * modified by something other than a user store instruction. Writes made
+     * through <tt>getPhysicalMemory()</tt> call this themselves. Any
+     * instructions already decoded from this page are discarded, so the next
+     * fetch from it will see the new contents.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Called by physical memory after a byte, halfword or word was stored at
+     * the specified address. Only the instruction containing it is discarded.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    void memoryWritten(long paddr) {
+	int ppn = (int) (paddr/pageSize);
+
+	if (decodedPages[ppn] != null)
+	    decodedPages[ppn][(int) (paddr%pageSize)/4] = null;
     }
 
     /**
@@ -292,9 +436,21 @@ public final class Processor {
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private long translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, dataPort);
+    }
+
+    /**
+     * Translate a virtual address as above, using the specified port's
+     * micro-TLB if there is a TLB. Instruction fetches and data accesses have
+     * their own ports, so that each keeps hitting on its own page.
+     */
+    private long translate(int vaddr, int size, boolean writing, int port)
+	throws MipsException {
+	boolean debug = Lib.test(dbgProcessor);
+	
+	if (debug)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -308,6 +464,10 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// a packed page table doesn't need any objects at all
+	if (packedPageTable != null)
+	    return translatePacked(vaddr, vpn, offset, writing, debug);
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -317,22 +477,26 @@ public final class Processor {
 		!translations[vpn].valid) {
 		privilege.stats.numPageFaults++;
 		Lib.debug(dbgProcessor, "\t\tpage fault");
+		if (Trace.pageFaults)
+		    Trace.record(Trace.pageFault, vaddr, 0);
 		throw new MipsException(exceptionPageFault, vaddr);
 	    }
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look for the TLB entry with a matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
+	    entry = microTLB[port];
+	    if (entry == null || entry.vpn != vpn) {
+		entry = lookupTLB(vpn, asid);
+		microTLB[port] = entry;
 	    }
+	    
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
+		if (Trace.tlbMisses)
+		    Trace.record(Trace.tlbMiss, vaddr, 0);
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
 	}
@@ -355,9 +519,127 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
+	long paddr = ((long) ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (debug)
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	return paddr;
+    }
+
+    /**
+     * Find the first valid TLB entry, in index order, that translates the
+     * specified virtual page in the specified address space. Small TLBs are
+     * scanned; large ones are looked up through a hash index of their valid
+     * entries.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	asid	the address space identifier.
+     * @return	the matching TLB entry, or <tt>null</tt> on a TLB miss.
+     */
+    private TranslationEntry lookupTLB(int vpn, int asid) {
+	if (tlbBuckets == null) {
+	    for (int i=0; i<tlbSize; i++) {
+		TranslationEntry entry = translations[i];
+		if (entry.valid && entry.vpn == vpn && entry.asid == asid)
+		    return entry;
+	    }
+	    return null;
+	}
+
+	for (int i=tlbBuckets[tlbBucket(vpn, asid)]; i!=-1; i=tlbChain[i]) {
+	    TranslationEntry entry = translations[i];
+	    if (entry.vpn == vpn && entry.asid == asid)
+		return entry;
+	}
+	return null;
+    }
+
+    private int tlbBucket(int vpn, int asid) {
+	// Fibonacci hashing spreads consecutive pages over the buckets, and
+	// mixing in the ASID keeps every address space's low pages from
+	// landing in the same few
+	return ((vpn + asid*0x61C88647) * 0x9E3779B9) >>>
+	    (32 - Integer.numberOfTrailingZeros(tlbBuckets.length));
+    }
+
+    /**
+     * Add a valid TLB entry to the hash index. Each bucket's chain is kept in
+     * index order, so that lookups find the same entry a scan would.
+     */
+    private void indexTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number].vpn,
+			       translations[number].asid);
+
+	int prev = -1, i = tlbBuckets[bucket];
+	while (i != -1 && i < number) {
+	    prev = i;
+	    i = tlbChain[i];
+	}
+
+	tlbChain[number] = i;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[prev] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the hash index.
+     */
+    private void unindexTLBEntry(int number) {
+	int bucket = tlbBucket(translations[number].vpn,
+			       translations[number].asid);
+
+	int prev = -1, i = tlbBuckets[bucket];
+	while (i != number) {
+	    prev = i;
+	    i = tlbChain[i];
+	}
+
+	if (prev == -1)
+	    tlbBuckets[bucket] = tlbChain[number];
+	else
+	    tlbChain[prev] = tlbChain[number];
+    }
+
+    /**
+     * Translate a virtual address using the packed page table, performing the
+     * same checks as <tt>translate()</tt>.
+     */
+    private long translatePacked(int vaddr, int vpn, int offset,
+				 boolean writing, boolean debug)
+	throws MipsException {
+	if (vpn >= packedPageTable.length ||
+	    !TranslationEntry.isValid(packedPageTable[vpn])) {
+	    privilege.stats.numPageFaults++;
+	    Lib.debug(dbgProcessor, "\t\tpage fault");
+	    if (Trace.pageFaults)
+		Trace.record(Trace.pageFault, vaddr, 0);
+	    throw new MipsException(exceptionPageFault, vaddr);
+	}
+
+	int entry = packedPageTable[vpn];
+
+	// check if trying to write a read-only page
+	if (writing && TranslationEntry.isReadOnly(entry)) {
+	    Lib.debug(dbgProcessor, "\t\tread-only exception");
+	    throw new MipsException(exceptionReadOnly, vaddr);
+	}
+
+	// check if physical page number is out of range
+	int ppn = TranslationEntry.packedPPN(entry);
+	if (ppn >= numPhysPages) {
+	    Lib.debug(dbgProcessor, "\t\tbad ppn");
+	    throw new MipsException(exceptionBusError, vaddr);
+	}
+
+	// set used and dirty bits as appropriate
+	packedPageTable[vpn] = entry | TranslationEntry.packedUsed |
+	    (writing ? TranslationEntry.packedDirty : 0);
+
+	long paddr = ((long) ppn*pageSize) + offset;
+
+	if (debug)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -376,10 +658,23 @@ public final class Processor {
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	long paddr = translate(vaddr, size, false);
+	int value;
+
+	switch (size) {
+	case 1:
+	    value = memory.getByte(paddr);
+	    break;
+	case 2:
+	    value = memory.getShort(paddr);
+	    break;
+	case 4:
+	    value = memory.getInt(paddr);
+	    break;
+	default:
+	    Lib.assertNotReached();
+	    return 0;
+	}
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tvalue read=0x" +
@@ -404,10 +699,42 @@ public final class Processor {
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
-	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	long paddr = translate(vaddr, size, true);
+
+	// physical memory discards anything decoded from the word written
+	switch (size) {
+	case 1:
+	    memory.putByte(paddr, (byte) value);
+	    break;
+	case 2:
+	    memory.putShort(paddr, (short) value);
+	    break;
+	case 4:
+	    memory.putInt(paddr, value);
+	    break;
+	default:
+	    Lib.assertNotReached();
+	}
+    }
+
+    /**
+     * Return the predecoded form of the instruction at the specified
+     * physical address, decoding and caching it if necessary.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private Decoded decodedAt(long paddr) {
+	int ppn = (int) (paddr/pageSize);
+	Decoded[] page = decodedPages[ppn];
+	if (page == null)
+	    page = decodedPages[ppn] = new Decoded[pageSize/4];
+
+	int index = (int) (paddr%pageSize)/4;
+	if (page[index] == null)
+	    page[index] = new Decoded(memory.getInt(paddr));
+
+	return page[index];
     }
 
     /**
@@ -541,11 +868,29 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The current address space identifier. */
+    private int asid = 0;
+    /** TLBs with more entries than this get a hash index. */
+    private static final int maxScannedTLBSize = 8;
+    /**
+     * For each hash bucket, the lowest numbered valid TLB entry whose vpn and
+     * ASID hash to it, or -1. <tt>null</tt> if the TLB is small enough to scan.
+     */
+    private int[] tlbBuckets = null;
+    /** For each valid TLB entry, the next entry in its bucket, or -1. */
+    private int[] tlbChain = null;
+    /**
+     * The TLB entry that last translated an address for each port, or
+     * <tt>null</tt>. Cleared whenever a TLB entry is written.
+     */
+    private TranslationEntry[] microTLB = new TranslationEntry[2];
+    private static final int fetchPort = 0, dataPort = 1;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    private int[] packedPageTable = null;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -554,7 +899,14 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private PhysicalMemory memory;
+    /**
+     * Instructions decoded from main memory, indexed by physical page and
+     * then by word within the page. A page's array is allocated the first
+     * time an instruction is fetched from it, and discarded whenever the page
+     * is overwritten by <tt>invalidatePage()</tt>.
+     */
+    private Decoded[][] decodedPages;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -626,78 +978,52 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    decoded = decodedAt(translate(registers[regPC], 4, false, fetchPort));
+	    value = decoded.value;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -939,6 +1265,9 @@ public final class Processor {
 		break;
 
 	    case Mips.SYSCALL:
+		if (Trace.syscalls)
+		    Trace.record(Trace.syscall, registers[regV0],
+				 registers[regA0]);
 		throw new MipsException(exceptionSyscall);
 
 	    case Mips.LOAD:
@@ -1052,6 +1381,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1393,75 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word:
+     * its fields, split apart, and its entry in the <tt>Mips</tt> tables.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    int signedImm = Lib.extend(value, 0, 16);
+	    branchOffset = signedImm<<2;
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm, branchOffset;
+	final int operation, format, flags, size, dstReg;
+	final String name;
+    }
+
     private static class Mips {
 	Mips() {
 	}
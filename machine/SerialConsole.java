@@ -39,6 +39,32 @@ public interface SerialConsole {
      */
     public int	readByte();
 
+    /**
+     * Return the byte that caused the last receive interrupt, followed by any
+     * more bytes that have already arrived, up to the end of the line. The
+     * receive interrupt handler is called again when another byte can be
+     * read.
+     *
+     * <p>
+     * A console that receives one byte at a time returns just the one.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the most bytes to return.
+     * @return	the number of bytes stored, or 0 if no byte is available.
+     */
+    public default int readBytes(byte[] buf, int offset, int length) {
+	if (length == 0)
+	    return 0;
+
+	int value = readByte();
+	if (value == -1)
+	    return 0;
+
+	buf[offset] = (byte) value;
+	return 1;
+    }
+
     /**
      * Send another byte. If a byte is already being sent, the result is not
      * defined.
@@ -46,4 +72,26 @@ public interface SerialConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value);
+
+    /**
+     * Start sending several bytes as one transfer, and return how many bytes
+     * were accepted. The send interrupt handler is called once, when all of
+     * the accepted bytes have been sent. If a send is already in progress,
+     * the result is not defined.
+     *
+     * <p>
+     * A console that can only send one byte at a time accepts just the first
+     * byte.
+     *
+     * @param	buf	the buffer containing the bytes to send.
+     * @param	offset	the offset in the buffer of the first byte to send.
+     * @param	length	the number of bytes to send. Must be at least 1.
+     * @return	the number of bytes accepted, at least 1.
+     */
+    public default int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+
+	writeByte(buf[offset]);
+	return 1;
+    }
 }
@@ -8,6 +8,14 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * Input is read by a separate Java thread, which blocks on System.in and
+ * queues whatever arrives in a bounded buffer. It posts a receive interrupt
+ * only when the buffer goes from empty to non-empty, so a console with no
+ * input causes no interrupts at all. The thread is started when a receive
+ * interrupt handler is first installed, so a console that is never read
+ * never reads System.in.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -28,38 +36,120 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	receiveEvent = privilege.interrupt.newEvent("console read",
+						    receiveInterrupt);
+	sendEvent = privilege.interrupt.newEvent("console write",
+						 sendInterrupt);
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
 					   Runnable sendInterruptHandler) {
 	this.receiveInterruptHandler = receiveInterruptHandler;
 	this.sendInterruptHandler = sendInterruptHandler;
+
+	if (receiveInterruptHandler != null && readThread == null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { startReader(); }
+		});
+	}
+    }
+
+    private void startReader() {
+	readThread = new Thread(new Runnable() {
+		public void run() { readLoop(); }
+	    }, "console reader");
+
+	readThread.setDaemon(true);
+	readThread.start();
     }
 
     private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				     receiveInterrupt);
+	privilege.interrupt.schedule(receiveEvent, Stats.ConsoleTime);
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
+     * Read some bytes from the object backing this console, blocking until at
+     * least one is available. Called only by the console's reader thread.
      *
-     * @return	the byte read, or -1 of no data is available.
+     * @param	buf	the buffer to store the bytes in.
+     * @return	the number of bytes read, or -1 at the end of the input.
      */
-    protected int in() {
+    protected int in(byte[] buf) {
 	try {
-	    if (System.in.available() <= 0)
-		return -1;
-
-	    return System.in.read();
+	    return System.in.read(buf);
 	}
 	catch (IOException e) {
 	    return -1;
 	}
     }
 
+    private void readLoop() {
+	byte[] chunk = new byte[inputBufferSize];
+
+	while (true) {
+	    int length = in(chunk);
+	    if (length < 0)
+		return;
+
+	    for (int i=0; i<length; ) {
+		synchronized (this) {
+		    while (inputCount == input.length) {
+			try {
+			    wait();
+			}
+			catch (InterruptedException e) {
+			}
+		    }
+
+		    while (i < length && inputCount < input.length) {
+			input[(inputHead + inputCount) % input.length] =
+			    chunk[i++];
+			inputCount++;
+		    }
+
+		    if (!receivePosted) {
+			receivePosted = true;
+			privilege.interrupt.post(receiveEvent);
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Take the next valid character from the input buffer.
+     *
+     * @return	the character, or -1 if the buffer holds no more.
+     */
+    private synchronized int nextKey() {
+	while (inputCount > 0) {
+	    int c = input[inputHead] & 0xFF;
+	    inputHead = (inputHead + 1) % input.length;
+	    inputCount--;
+	    notify();
+
+	    c = translateCharacter(c);
+	    if (c != -1)
+		return c;
+	}
+
+	// the reader thread must post again when more arrives
+	receivePosted = false;
+	return -1;
+    }
+
+    /**
+     * Test whether more input is buffered, and if not, let the reader thread
+     * post the next receive interrupt.
+     */
+    private synchronized boolean moreInput() {
+	if (inputCount == 0)
+	    receivePosted = false;
+
+	return inputCount > 0;
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -89,11 +179,8 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
-	}
-	else {
+	incomingKey = nextKey();
+	if (incomingKey != -1) {
 	    privilege.stats.numConsoleReads++;
 
 	    if (receiveInterruptHandler != null)
@@ -106,15 +193,47 @@ public class StandardConsole implements SerialConsole {
 
 	if (incomingKey != -1) {
 	    incomingKey = -1;
-	    scheduleReceiveInterrupt();
+
+	    if (moreInput())
+		scheduleReceiveInterrupt();
 	}
 
 	return key;
     }
 
+    /**
+     * Return the byte signalled by the receive interrupt, followed by as many
+     * more buffered bytes as fit, up to the end of the line.
+     */
+    public final int readBytes(byte[] buf, int offset, int length) {
+	if (incomingKey == -1 || length == 0)
+	    return 0;
+
+	int amount = 0;
+	int key = incomingKey;
+	incomingKey = -1;
+
+	while (true) {
+	    buf[offset + amount++] = (byte) key;
+
+	    if (key == '\n' || amount == length)
+		break;
+
+	    key = nextKey();
+	    if (key == -1)
+		break;
+
+	    privilege.stats.numConsoleReads++;
+	}
+
+	if (moreInput())
+	    scheduleReceiveInterrupt();
+
+	return amount;
+    }
+
     private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				     sendInterrupt);
+	privilege.interrupt.schedule(sendEvent, Stats.ConsoleTime);
     }
 
     /**
@@ -127,35 +246,92 @@ public class StandardConsole implements SerialConsole {
 	System.out.flush();
     }	
 
+    /**
+     * Write several bytes to the object backing this console, with a single
+     * flush.
+     *
+     * @param	buf	the buffer containing the bytes to write.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to write.
+     */
+    protected void out(byte[] buf, int offset, int length) {
+	System.out.write(buf, offset, length);
+	System.out.flush();
+    }
+
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	if (outgoingLength > 0) {
+	    out(outgoing, 0, outgoingLength);
+	    privilege.stats.numConsoleWrites += outgoingLength;
+	    outgoingLength = 0;
+	}
+	else {
+	    Lib.assertTrue(outgoingKey != -1);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	    out(outgoingKey);
+	    outgoingKey = -1;
 
-	privilege.stats.numConsoleWrites++;
+	    privilege.stats.numConsoleWrites++;
+	}
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     public final void writeByte(int value) {
-	if (outgoingKey == -1)
+	if (outgoingKey == -1 && outgoingLength == 0)
 	    scheduleSendInterrupt();
 	
 	outgoingKey = value&0xFF;
     }
 
+    /**
+     * Start sending up to <tt>maxSendLength</tt> bytes. The bytes are copied,
+     * and are written to the backing object together, as a single transfer
+     * taking the same time as sending one byte.
+     */
+    public final int writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(length > 0);
+
+	if (outgoingKey == -1 && outgoingLength == 0)
+	    scheduleSendInterrupt();
+
+	outgoingLength = Math.min(length, maxSendLength);
+	System.arraycopy(buf, offset, outgoing, 0, outgoingLength);
+
+	return outgoingLength;
+    }
+
+    /** The most bytes that <tt>writeBytes()</tt> accepts at once. */
+    public static final int maxSendLength = 4096;
+
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
     private Runnable sendInterrupt;
+    private int receiveEvent, sendEvent;
 
     private Runnable receiveInterruptHandler = null;
     private Runnable sendInterruptHandler = null;
 
+    /** The reader thread, or <tt>null</tt> until input is first wanted. */
+    private Thread readThread = null;
+
     private int incomingKey = -1;
+
+    /** Input read from System.in but not yet received, guarded by this. */
+    private byte[] input = new byte[inputBufferSize];
+    private int inputHead = 0, inputCount = 0;
+    /**
+     * <tt>true</tt> while a receive interrupt is due to take the buffered
+     * input, so the reader thread doesn't need to post another.
+     */
+    private boolean receivePosted = false;
+
+    private static final int inputBufferSize = 4096;
     private int outgoingKey = -1;
+    private byte[] outgoing = new byte[maxSendLength];
+    private int outgoingLength = 0;
 
     private boolean prevCarriageReturn = false;
 }
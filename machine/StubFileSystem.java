@@ -6,12 +6,46 @@ import nachos.security.*;
 import nachos.threads.*;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * The file system behaves like a device with a request queue. Each
+ * <tt>open()</tt>, <tt>remove()</tt>, <tt>read()</tt> and <tt>write()</tt>
+ * is handed to a pool of Java I/O threads, and the calling Nachos thread
+ * sleeps until a completion interrupt wakes it. Requests from different
+ * threads are serviced at the same time. A request completes
+ * <tt>latency</tt> ticks after it was issued, if the host has finished it by
+ * then. Otherwise the I/O thread posts a completion interrupt when the host
+ * finishes, and the request completes on the next tick; simulated time keeps
+ * running meanwhile, so other Nachos threads are not held up.
+ *
+ * <p>
+ * The I/O threads are started, all at once, by the first request. They are
+ * not Nachos threads, so the security manager doesn't restrict them; they
+ * only ever run host I/O for requests, and hand results back through the
+ * interrupt controller.
+ *
+ * <p>
+ * Every open file with the same name shares one host file, which is accessed
+ * with positional reads and writes on a <tt>FileChannel</tt>. At most
+ * <tt>maxHostChannels</tt> channels are kept open at once; when another is
+ * needed, the least recently used idle one is closed, and reopened if it is
+ * used again. So any number of files can be open, and reopening a file that
+ * was recently closed doesn't touch the host file system at all.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,147 +58,450 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	lateEvent = privilege.interrupt.newEvent("stub fs", new Runnable() {
+		public void run() { lateInterrupt(); }
+	    });
+    }
+
+    /**
+     * Start the I/O threads. Nachos threads may not create Java threads, so
+     * this runs with privilege, and starts every thread the pool will ever
+     * use.
+     */
+    private void startIOThreads() {
+	ioThreads = new ThreadPoolExecutor(numIOThreads, numIOThreads,
+					   0, TimeUnit.MILLISECONDS,
+					   new LinkedBlockingQueue<Runnable>(),
+					   new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread thread = new Thread(r, "stub fs I/O");
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	ioThreads.prestartAllCoreThreads();
     }
     
-    public OpenFile open(String name, boolean truncate) {
+    public OpenFile open(final String name, final boolean truncate) {
 	if (!checkName(name))
 	    return null;
+
+	Request request = new Request() {
+		void perform() throws IOException {
+		    HostFile host = getHostFile(name, truncate);
+		    try {
+			if (truncate)
+			    host.channel.truncate(0);
+
+			// nothing can drop the host file while its channel is
+			// acquired, so add the open file's reference now
+			addReference(host);
+			result = host;
+		    }
+		    finally {
+			releaseChannel(host);
+		    }
+		}
+	    };
 	
-	delay();
-	    
-	try {
-	    return new StubOpenFile(name, truncate);
-	}
-	catch (IOException e) {
+	if (!submit(request)) {
+	    // give back the reference, if the request failed after adding it
+	    if (request.result != null)
+		release((HostFile) request.result);
 	    return null;
 	}
+
+	return new StubOpenFile(name, (HostFile) request.result);
     }
     
-    public boolean remove(String name) {
+    public boolean remove(final String name) {
 	if (!checkName(name))
 	    return false;
 
-	delay();
+	Request request = new Request() {
+		void perform() {
+		    dropHostFile(name);
+		    result = new File(directory, name).delete();
+		}
+	    };
 
-	FileRemover fr = new FileRemover(new File(directory, name));
-	privilege.doPrivileged(fr);
-	return fr.successful;
+	return submit(request) && (Boolean) request.result;
     }
 
-    private class FileRemover implements Runnable {
-	public FileRemover(File f) {
-	    this.f = f;
-	}
-	
+    /**
+     * A request to the I/O threads.
+     */
+    private abstract class Request implements Runnable {
+	/**
+	 * Do the host I/O for this request. Runs on an I/O thread.
+	 */
+	abstract void perform() throws IOException;
+
 	public void run() {
-	    successful = f.delete();
+	    try {
+		perform();
+		successful = true;
+	    }
+	    catch (IOException e) {
+	    }
+	    catch (RuntimeException e) {
+		failure = e;
+	    }
+	    catch (Error e) {
+		failure = e;
+	    }
+
+	    boolean late;
+	    synchronized (this) {
+		finished = true;
+		late = due;
+	    }
+
+	    if (late) {
+		lateRequests.add(this);
+		privilege.interrupt.post(lateEvent);
+	    }
 	}
-	
-	public boolean successful = false;
-	private File f;
+
+	/**
+	 * <tt>true</tt> once the host has finished. Guarded by this request.
+	 */
+	boolean finished = false;
+	/**
+	 * <tt>true</tt> once the latency has passed, so the I/O thread must
+	 * post the completion. Guarded by this request.
+	 */
+	boolean due = false;
+	/** Anything other than an <tt>IOException</tt> thrown by the host. */
+	Throwable failure = null;
+	boolean successful = false;
+	Object result = null;
+	Semaphore done = new Semaphore(0);
     }
 
-    private void delay() {
+    /**
+     * Queue a request, and sleep until it completes.
+     *
+     * @param	request	the request.
+     * @return	<tt>true</tt> if the request's host I/O succeeded.
+     */
+    private boolean submit(final Request request) {
 	long time = Machine.timer().getTime();
-	int amount = 1000;
-	ThreadedKernel.alarm.waitUntil(amount);
-	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
+
+	if (ioThreads == null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { startIOThreads(); }
+		});
+	}
+
+	ioThreads.execute(request);
+	privilege.interrupt.schedule(latency, "stub fs", new Runnable() {
+		public void run() { completionInterrupt(request); }
+	    });
+	request.done.P();
+
+	Lib.assertTrue(Machine.timer().getTime() >= time+latency);
+
+	// report host errors on the thread that issued the request
+	if (request.failure instanceof RuntimeException)
+	    throw (RuntimeException) request.failure;
+	if (request.failure != null)
+	    throw (Error) request.failure;
+
+	return request.successful;
     }
 
-    private class StubOpenFile extends OpenFileWithPosition {
-	StubOpenFile(final String name, final boolean truncate)
-	    throws IOException {
-	    super(StubFileSystem.this, name);
+    /**
+     * Called when a request's latency has passed. Wakes the thread that
+     * issued it, or, if the host hasn't finished yet, leaves that to the I/O
+     * thread.
+     */
+    private void completionInterrupt(Request request) {
+	synchronized (request) {
+	    if (!request.finished) {
+		request.due = true;
+		return;
+	    }
+	}
 
-	    final File f = new File(directory, name);
+	request.done.V();
+    }
 
-	    if (openCount == maxOpenFiles)
-		throw new IOException();
+    /**
+     * Called on the tick after an I/O thread finishes a request that was
+     * already due. Wakes the threads that issued every such request.
+     */
+    private void lateInterrupt() {
+	Request request;
+	while ((request = lateRequests.poll()) != null)
+	    request.done.V();
+    }
 
-	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
-	    });
+    /**
+     * A host file, shared by every open file with the same name.
+     */
+    private class HostFile {
+	HostFile(String name) {
+	    this.name = name;
+	    file = new File(directory, name);
+	}
 
-	    if (file == null)
-		throw new IOException();
+	String name;
+	File file;
+	/** The open channel, or <tt>null</tt> if it was closed to save one. */
+	FileChannel channel = null;
+	/** The number of <tt>StubOpenFile</tt>s using this host file. */
+	int references = 0;
+	/** The number of requests using the channel right now. */
+	int users = 0;
+    }
 
-	    open = true;
-	    openCount++;
+    /**
+     * Find or create the host file with the specified name, and acquire its
+     * channel. The caller must release the channel, and must add a reference
+     * before releasing it if it keeps the host file.
+     */
+    private synchronized HostFile getHostFile(String name, boolean create)
+	throws IOException {
+	HostFile host = hostFiles.get(name);
+	if (host == null) {
+	    host = new HostFile(name);
+	    hostFiles.put(name, host);
 	}
 
-	private void getRandomAccessFile(File f, boolean truncate) {
-	    try {
-		if (!truncate && !f.exists())
-		    return;
+	try {
+	    acquireChannel(host, create);
+	}
+	catch (IOException e) {
+	    if (host.references == 0)
+		hostFiles.remove(name);
+	    throw e;
+	}
 
-		file = new RandomAccessFile(f, "rw");
+	return host;
+    }
 
-		if (truncate)
-		    file.setLength(0);
-	    }
-	    catch (IOException e) {
+    /**
+     * Forget the host file with the specified name, if nothing is using it,
+     * so its channel doesn't keep a removed file open.
+     */
+    private synchronized void dropHostFile(String name) {
+	HostFile host = hostFiles.get(name);
+	if (host != null && host.references == 0 && host.users == 0) {
+	    closeChannel(host);
+	    hostFiles.remove(name);
+	}
+    }
+
+    /**
+     * Return the open channel for a host file, reopening it, and closing the
+     * least recently used idle channel to make room, if necessary. The
+     * channel can't be closed until it is released.
+     */
+    private synchronized FileChannel acquireChannel(HostFile host,
+						    boolean create)
+	throws IOException {
+	// mark it as the most recently used
+	hostFiles.get(host.name);
+
+	if (host.channel == null) {
+	    if (numChannels >= maxHostChannels) {
+		Iterator<HostFile> i = hostFiles.values().iterator();
+		while (i.hasNext()) {
+		    HostFile lru = i.next();
+		    if (lru.channel != null && lru.users == 0 && lru != host) {
+			closeChannel(lru);
+			if (lru.references == 0)
+			    i.remove();
+			break;
+		    }
+		}
 	    }
+
+	    if (create)
+		host.channel = FileChannel.open(host.file.toPath(),
+						StandardOpenOption.READ,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE);
+	    else
+		host.channel = FileChannel.open(host.file.toPath(),
+						StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+
+	    numChannels++;
+	}
+
+	host.users++;
+	return host.channel;
+    }
+
+    private synchronized void releaseChannel(HostFile host) {
+	Lib.assertTrue(host.users > 0);
+	host.users--;
+    }
+
+    private synchronized void addReference(HostFile host) {
+	host.references++;
+    }
+
+    private synchronized void release(HostFile host) {
+	host.references--;
+	if (host.references == 0 && host.channel == null)
+	    hostFiles.remove(host.name);
+    }
+
+    private void closeChannel(HostFile host) {
+	if (host.channel == null)
+	    return;
+
+	try {
+	    host.channel.close();
+	}
+	catch (IOException e) {
 	}
 
-	public int read(int pos, byte[] buf, int offset, int length) {
+	host.channel = null;
+	numChannels--;
+    }
+
+    private class StubOpenFile extends OpenFileWithPosition {
+	StubOpenFile(String name, HostFile host) {
+	    super(StubFileSystem.this, name);
+
+	    this.host = host;
+	    open = true;
+	}
+
+	public int read(final int pos, final byte[] buf, final int offset,
+			final int length) {
 	    if (!open)
 		return -1;
-	    
-	    try {
-		delay();
 
-		file.seek(pos);
-		return Math.max(0, file.read(buf, offset, length));
-	    }
-	    catch (IOException e) {
+	    Request request = new Request() {
+		    void perform() throws IOException {
+			FileChannel channel = acquireChannel(host, false);
+			try {
+			    // read straight into the caller's array, until it
+			    // is full or the file ends
+			    ByteBuffer buffer = ByteBuffer.wrap(buf, offset,
+								length);
+			    while (buffer.hasRemaining()) {
+				int amount = channel.read(buffer,
+							  pos + buffer.position()
+							  - offset);
+				if (amount <= 0)
+				    break;
+			    }
+			    result = buffer.position() - offset;
+			}
+			finally {
+			    releaseChannel(host);
+			}
+		    }
+		};
+
+	    if (!submit(request))
 		return -1;
-	    }
+
+	    return (Integer) request.result;
 	}
 	
-	public int write(int pos, byte[] buf, int offset, int length) {
+	public int write(final int pos, final byte[] buf, final int offset,
+			 final int length) {
 	    if (!open)
 		return -1;
-	    
-	    try {
-		delay();
-		
-		file.seek(pos);
-		file.write(buf, offset, length);
-		return length;
-	    }
-	    catch (IOException e) {
+
+	    Request request = new Request() {
+		    void perform() throws IOException {
+			FileChannel channel = acquireChannel(host, false);
+			try {
+			    ByteBuffer buffer = ByteBuffer.wrap(buf, offset,
+								length);
+			    while (buffer.hasRemaining())
+				channel.write(buffer,
+					      pos + buffer.position() - offset);
+			}
+			finally {
+			    releaseChannel(host);
+			}
+		    }
+		};
+
+	    if (!submit(request))
 		return -1;
-	    }
+
+	    return length;
 	}
 
 	public int length() {
-	    try {
-		return (int) file.length();
-	    }
-	    catch (IOException e) {
+	    if (!open)
 		return -1;
+
+	    // usually the channel is still open, and no host I/O is needed
+	    synchronized (StubFileSystem.this) {
+		try {
+		    if (host.channel != null)
+			return (int) host.channel.size();
+		}
+		catch (IOException e) {
+		    return -1;
+		}
 	    }
+
+	    Request request = new Request() {
+		    void perform() throws IOException {
+			FileChannel channel = acquireChannel(host, false);
+			try {
+			    result = (int) channel.size();
+			}
+			finally {
+			    releaseChannel(host);
+			}
+		    }
+		};
+
+	    if (!submit(request))
+		return -1;
+
+	    return (Integer) request.result;
 	}
 
 	public void close() {
-	    if (open) {
-		open = false;
-		openCount--;
-	    }
-		
-	    try {
-		file.close();
-	    }
-	    catch (IOException e) {
-	    }
+	    if (!open)
+		return;
+
+	    open = false;
+
+	    // leave the channel open in case the file is opened again soon
+	    release(host);
 	}
 
-	private RandomAccessFile file = null;
+	private HostFile host;
 	private boolean open = false;
     }
 
-    private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /**
+     * The host files that are open or have an open channel, indexed by name
+     * and ordered from least to most recently used. Guarded by this.
+     */
+    private LinkedHashMap<String, HostFile> hostFiles =
+	new LinkedHashMap<String, HostFile>(16, 0.75f, true);
+    private int numChannels = 0;
+    /** The most host file channels to keep open at once. */
+    private static final int maxHostChannels = 16;
+
+    /** The number of ticks each request takes, at least. */
+    private static final int latency = 1000;
+    /** The number of requests the host can work on at once. */
+    private static final int numIOThreads = 4;
+
+    /** The I/O threads, or <tt>null</tt> until the first request. */
+    private ThreadPoolExecutor ioThreads = null;
+    /** Due requests that the host has since finished. */
+    private ConcurrentLinkedQueue<Request> lateRequests =
+	new ConcurrentLinkedQueue<Request>();
+    private int lateEvent;
     
     private Privilege privilege;
     private File directory;
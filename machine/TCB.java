@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,15 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * By default, each TCB runs on a platform thread, and TCBs hand the CPU to
+ * each other through their monitors. Setting <tt>TCB.virtualThreads</tt> in
+ * the configuration file runs TCBs on virtual threads instead, when the JVM
+ * supports them. Setting <tt>TCB.handoff = park</tt> hands the CPU over
+ * with <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, which is always
+ * done on virtual threads. <tt>TCB.maxThreads</tt> changes the limit on the
+ * number of TCBs in existence.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +51,73 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    virtualThreadBuilder = createVirtualThreadBuilder();
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	Lib.assertTrue(handoff.equals("monitor") || handoff.equals("park"));
+
+	// a virtual thread blocked in a monitor would pin its carrier thread
+	parkHandoff = handoff.equals("park") || virtualThreadBuilder != null;
+    }
+
+    /**
+     * Return a builder for virtual threads, or <tt>null</tt> if this JVM does
+     * not support them. Virtual threads are looked up reflectively so that
+     * Nachos still builds and runs on older JVMs.
+     */
+    private static Object createVirtualThreadBuilder() {
+	/* Only one TCB runs at a time, so one carrier thread is enough, even
+	 * while a TCB blocks in host I/O. Limiting the scheduler to one also
+	 * means no carrier threads are created once the first one is running,
+	 * which Nachos threads would not be allowed to do.
+	 */
+	for (String property : schedulerProperties) {
+	    if (System.getProperty(property) == null)
+		System.setProperty(property, "1");
+	}
+	
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    newVirtualThread =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+
+	    /* Starting the first virtual thread sets up the JVM's scheduler
+	     * for them, which creates thread groups and threads. Do it now,
+	     * before any TCB exists, since this is only allowed from
+	     * non-Nachos threads.
+	     */
+	    Thread thread = (Thread) newVirtualThread.invoke(builder,
+							     new Runnable() {
+		    public void run() { }
+		});
+	    thread.start();
+	    thread.join();
+	    
+	    return builder;
+	}
+	catch (Exception e) {
+	    System.out.print(" (no virtual threads)");
+	    return null;
+	}
+    }
+
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						    target);
+	}
+	catch (Exception e) {
+	    throw new Error("unable to create virtual thread", e);
+	}
     }
     
     /**
@@ -66,7 +144,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +172,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -116,6 +194,15 @@ public final class TCB {
 
 	    /* All we have to do now is invoke threadroot() directly. */
 	    threadroot();
+
+	    /* Virtual threads do not keep the JVM running, so if the other
+	     * TCBs run on them, this Java thread has to stay alive until
+	     * Nachos exits.
+	     */
+	    if (virtualThreadBuilder != null) {
+		while (true)
+		    LockSupport.park();
+	    }
 	}
     }
 
@@ -289,7 +376,17 @@ public final class TCB {
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (parkHandoff) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -302,7 +399,17 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parkHandoff) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
@@ -329,11 +436,32 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, from <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+    /**
+     * <tt>true</tt> if TCBs hand off the CPU using <tt>park()</tt> and
+     * <tt>unpark()</tt> rather than their monitors.
+     */
+    private static boolean parkHandoff = false;
+    /**
+     * The <tt>Thread.Builder</tt> used to create virtual threads, or
+     * <tt>null</tt> to create platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    private static Method newVirtualThread;
+    private static final String[] schedulerProperties = {
+	"jdk.virtualThreadScheduler.parallelism",
+	"jdk.virtualThreadScheduler.maxPoolSize"
+    };
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -356,7 +484,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -390,7 +518,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -37,6 +37,16 @@ public final class Timer {
 		}
 	    };
 
+	oneShotInterrupt = new Runnable() {
+		public void run() { oneShotInterrupt(); }
+	    };
+
+	timerEvent = privilege.interrupt.newEvent("timer", timerInterrupt);
+	oneShotEvent = privilege.interrupt.newEvent("timer one-shot",
+						    oneShotInterrupt);
+	autoGraderEvent = privilege.interrupt.newEvent("timerAG",
+						       autoGraderInterrupt);
+
 	scheduleInterrupt();
     }
 
@@ -50,6 +60,32 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as a one-shot timer interrupt handler. The
+     * one-shot handler is only called at the times requested with
+     * <tt>scheduleOneShot()</tt>.
+     *
+     * @param	handler		the one-shot timer interrupt handler.
+     */
+    public void setOneShotHandler(Runnable handler) {
+	this.oneShotHandler = handler;
+    }
+
+    /**
+     * Request a one-shot timer interrupt at the specified time, in addition
+     * to the periodic timer interrupts. Only one one-shot interrupt is
+     * pending at a time: this replaces any earlier request that has not yet
+     * occurred. If the time has already passed, the interrupt occurs on the
+     * next tick.
+     *
+     * @param	time	the time at which the one-shot interrupt should occur.
+     */
+    public void scheduleOneShot(long time) {
+	long when = Math.max(time - getTime(), 1);
+
+	privilege.interrupt.schedule(oneShotEvent, when);
+    }
+
     /**
      * Get the current time.
      *
@@ -69,21 +105,29 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void oneShotInterrupt() {
+	if (oneShotHandler != null)
+	    oneShotHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
 
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	privilege.interrupt.schedule(timerEvent, delay);
     }
 
     private void scheduleAutoGraderInterrupt() {
-	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	privilege.interrupt.schedule(autoGraderEvent, 1);
     }
 
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable oneShotInterrupt;
+    private int timerEvent, autoGraderEvent, oneShotEvent;
 
     private Privilege privilege;
     private Runnable handler = null;
+    private Runnable oneShotHandler = null;
 }
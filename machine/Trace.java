@@ -0,0 +1,179 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A low-overhead binary trace of machine and kernel events.
+ *
+ * <p>
+ * Each category of event has its own fixed-size ring buffer, which holds the
+ * time of each event and two <tt>int</tt> arguments. Recording an event
+ * stores three numbers and builds no strings; the buffers are only formatted
+ * when they are dumped, on demand or when the machine terminates. Once a
+ * ring buffer fills, each new event replaces its oldest one.
+ *
+ * <p>
+ * Categories are enabled with the <tt>-t</tt> switch or the
+ * <tt>Machine.trace</tt> configuration key, using the same kind of flag
+ * string as <tt>-d</tt>:
+ *
+ * <p>
+ * <table>
+ * <tr><td><tt>c</tt></td><td>context switches (from thread, to thread)
+ * <tr><td><tt>p</tt></td><td>page faults (virtual address)
+ * <tr><td><tt>t</tt></td><td>TLB misses (virtual address)
+ * <tr><td><tt>s</tt></td><td>system calls (syscall number, first argument)
+ * <tr><td><tt>i</tt></td><td>interrupts (interrupt type)
+ * </table>
+ *
+ * <p>
+ * The enable flags are <tt>static final</tt>, so a call site guarded by one,
+ * such as
+ *
+ * <pre>
+ *	if (Trace.tlbMisses)
+ *	    Trace.record(Trace.tlbMiss, vaddr, 0);
+ * </pre>
+ *
+ * costs nothing once compiled when its category is disabled.
+ */
+public final class Trace {
+    /**
+     * Prevent instantiation.
+     */
+    private Trace() {
+    }
+
+    /** The category of context switches. */
+    public static final int contextSwitch = 0;
+    /** The category of page faults. */
+    public static final int pageFault = 1;
+    /** The category of TLB misses. */
+    public static final int tlbMiss = 2;
+    /** The category of system calls. */
+    public static final int syscall = 3;
+    /** The category of interrupts. */
+    public static final int interrupt = 4;
+
+    private static final int numCategories = 5;
+    private static final char[] categoryFlags = { 'c', 'p', 't', 's', 'i' };
+    private static final String[] categoryNames = {
+	"context switches", "page faults", "TLB misses", "system calls",
+	"interrupts"
+    };
+
+    private static final String flags = Machine.getTraceFlags();
+
+    /** <tt>true</tt> if context switches are traced. */
+    public static final boolean contextSwitches = enabled(contextSwitch);
+    /** <tt>true</tt> if page faults are traced. */
+    public static final boolean pageFaults = enabled(pageFault);
+    /** <tt>true</tt> if TLB misses are traced. */
+    public static final boolean tlbMisses = enabled(tlbMiss);
+    /** <tt>true</tt> if system calls are traced. */
+    public static final boolean syscalls = enabled(syscall);
+    /** <tt>true</tt> if interrupts are traced. */
+    public static final boolean interrupts = enabled(interrupt);
+
+    private static boolean enabled(int category) {
+	return flags.indexOf(categoryFlags[category]) != -1 ||
+	    flags.indexOf('+') != -1;
+    }
+
+    /**
+     * Record an event. The caller should first test the category's enable
+     * flag, so that nothing is evaluated when it is disabled.
+     *
+     * @param	category	the category of the event.
+     * @param	arg0		the event's first argument.
+     * @param	arg1		the event's second argument.
+     */
+    public static void record(int category, int arg0, int arg1) {
+	Ring ring = rings[category];
+	if (ring == null)
+	    return;
+
+	int index = (int) (ring.count++ & (ring.times.length-1));
+
+	ring.times[index] = Machine.timer().getTime();
+	ring.arg0[index] = arg0;
+	ring.arg1[index] = arg1;
+    }
+
+    /**
+     * Print the contents of every enabled ring buffer, oldest event first,
+     * and empty them.
+     */
+    public static void dump() {
+	for (int category=0; category<numCategories; category++) {
+	    Ring ring = rings[category];
+	    if (ring == null)
+		continue;
+
+	    int capacity = ring.times.length;
+	    long first = Math.max(ring.count - capacity, 0);
+
+	    System.out.println("Trace of " + categoryNames[category] + ": "
+			       + ring.count + " recorded, last "
+			       + (ring.count - first) + " shown");
+
+	    for (long i=first; i<ring.count; i++) {
+		int index = (int) (i & (capacity-1));
+		System.out.println("  " + ring.times[index] + "\t"
+				   + format(category, ring.arg0[index],
+					    ring.arg1[index]));
+	    }
+
+	    ring.count = 0;
+	}
+    }
+
+    private static String format(int category, int arg0, int arg1) {
+	switch (category) {
+	case contextSwitch:
+	    return "thread " + arg0 + " -> thread " + arg1;
+	case pageFault:
+	case tlbMiss:
+	    return "vaddr=0x" + Lib.toHexString(arg0);
+	case syscall:
+	    return "syscall " + arg0 + ", a0=0x" + Lib.toHexString(arg1);
+	case interrupt:
+	    return Machine.interrupt().getTypeName(arg0);
+	default:
+	    return arg0 + " " + arg1;
+	}
+    }
+
+    private static class Ring {
+	Ring(int capacity) {
+	    times = new long[capacity];
+	    arg0 = new int[capacity];
+	    arg1 = new int[capacity];
+	}
+
+	long count = 0;
+	long[] times;
+	int[] arg0, arg1;
+    }
+
+    private static final Ring[] rings = new Ring[numCategories];
+
+    static {
+	int capacity = 0;
+
+	for (int category=0; category<numCategories; category++) {
+	    if (!enabled(category))
+		continue;
+
+	    if (capacity == 0) {
+		int size = Config.getInteger("Machine.traceBufferSize", 1024);
+		Lib.assertTrue(size > 0);
+		capacity = Integer.highestOneBit(size);
+		if (capacity < size)
+		    capacity <<= 1;
+	    }
+
+	    rings[category] = new Ring(capacity);
+	}
+    }
+}
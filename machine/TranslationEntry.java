@@ -50,8 +50,92 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
+    /**
+     * Pack a translation into a single <tt>int</tt>, for use in a page table
+     * passed to <tt>Processor.setPageTable(int[])</tt>. The virtual page
+     * number is not included, since it is the index into the page table.
+     *
+     * @param	ppn		the physical page number.
+     * @param	valid		the valid bit.
+     * @param	readOnly	the read-only bit.
+     * @param	used		the used bit.
+     * @param	dirty		the dirty bit.
+     * @return	the packed translation.
+     */
+    public static int pack(int ppn, boolean valid, boolean readOnly,
+			   boolean used, boolean dirty) {
+	Lib.assertTrue(ppn >= 0 && ppn <= packedPPNMask);
+
+	return ppn |
+	    (valid ? packedValid : 0) |
+	    (readOnly ? packedReadOnly : 0) |
+	    (used ? packedUsed : 0) |
+	    (dirty ? packedDirty : 0);
+    }
+
+    /**
+     * Pack an existing translation entry into a single <tt>int</tt>.
+     *
+     * @param	entry	the translation entry to pack.
+     * @return	the packed translation.
+     */
+    public static int pack(TranslationEntry entry) {
+	return pack(entry.ppn, entry.valid, entry.readOnly, entry.used,
+		    entry.dirty);
+    }
+
+    /**
+     * Unpack a translation packed by <tt>pack()</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	packed	the packed translation.
+     * @return	a new translation entry with the same contents.
+     */
+    public static TranslationEntry unpack(int vpn, int packed) {
+	return new TranslationEntry(vpn, packedPPN(packed),
+				    isValid(packed), isReadOnly(packed),
+				    isUsed(packed), isDirty(packed));
+    }
+
+    /** Return the physical page number of a packed translation. */
+    public static int packedPPN(int packed) {
+	return packed & packedPPNMask;
+    }
+
+    /** Return the valid bit of a packed translation. */
+    public static boolean isValid(int packed) {
+	return (packed & packedValid) != 0;
+    }
+
+    /** Return the read-only bit of a packed translation. */
+    public static boolean isReadOnly(int packed) {
+	return (packed & packedReadOnly) != 0;
+    }
+
+    /** Return the used bit of a packed translation. */
+    public static boolean isUsed(int packed) {
+	return (packed & packedUsed) != 0;
+    }
+
+    /** Return the dirty bit of a packed translation. */
+    public static boolean isDirty(int packed) {
+	return (packed & packedDirty) != 0;
+    }
+
+    /** The bits of a packed translation holding the physical page number. */
+    public static final int packedPPNMask = 0x0FFFFFFF;
+    /** The valid bit of a packed translation. */
+    public static final int packedValid = 0x10000000;
+    /** The read-only bit of a packed translation. */
+    public static final int packedReadOnly = 0x20000000;
+    /** The used bit of a packed translation. */
+    public static final int packedUsed = 0x40000000;
+    /** The dirty bit of a packed translation. */
+    public static final int packedDirty = 0x80000000;
+
     /** The virtual page number. */
     public int vpn;
     
@@ -80,4 +164,11 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space identifier. A TLB entry only matches while the
+     * processor's current ASID is the same. Not stored in packed
+     * translations, since a page table belongs to a single address space.
+     */
+    public int asid;
 }
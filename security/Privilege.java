@@ -149,6 +149,40 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Allocate an event that can be scheduled over and over again, for a
+	 * device that keeps rescheduling the same interrupt. Unlike
+	 * <tt>schedule(long, String, Runnable)</tt>, scheduling the returned
+	 * event does not allocate anything.
+	 *
+	 * @param	type	a name for the type of interrupt.
+	 * @param	handler	the interrupt handler to call.
+	 * @return	the event, to pass to <tt>schedule(int, long)</tt>.
+	 */
+	public int newEvent(String type, Runnable handler);
+
+	/**
+	 * Schedule an event allocated with <tt>newEvent()</tt> to occur at some
+	 * time in the future. If the event is already pending, it is moved to
+	 * the new time.
+	 *
+	 * @param	event	the event to schedule.
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 */
+	public void schedule(int event, long when);
+
+	/**
+	 * Make an event allocated with <tt>newEvent()</tt> occur as soon as
+	 * possible, on the next tick. Unlike the other methods, this can be
+	 * called from any Java thread, such as one waiting for host I/O; the
+	 * event is scheduled the next time simulated time advances, or the
+	 * next time the machine idles.
+	 *
+	 * @param	event	the event to post.
+	 */
+	public void post(int event);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +192,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks that can pass before the next pending
+	 * interrupt is due. That many calls to <tt>tick()</tt> may be
+	 * replaced by a single call to <tt>advance()</tt>, as long as no
+	 * kernel code runs in between.
+	 *
+	 * @return	the number of ticks until the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none are pending. Returns 0 if
+	 *		every tick must be taken individually.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks,
+	 * without checking for pending interrupts. The caller must ensure no
+	 * interrupt becomes due, using <tt>ticksUntilDue()</tt>.
+	 *
+	 * @param	userTicks	the number of user ticks that have passed.
+	 */
+	public void advance(long userTicks);
     }
 
     /**
@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -18,11 +17,15 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        threadMap = new HashMap<KThread, Long>();
+        sleepers = new PriorityQueue<Sleeper>();
 
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() { timerInterrupt(); }
         });
+
+        Machine.timer().setOneShotHandler(new Runnable() {
+            public void run() { wakeSleepers(); }
+        });
     }
 
     /**
@@ -32,55 +35,92 @@ public class Alarm {
      * that should be run.
      */
     public void timerInterrupt() {
+        wakeSleepers();
+
+        KThread.yield();
+    }
 
+    /**
+     * Wake every sleeping thread whose wake time has arrived, and request a
+     * one-shot timer interrupt for the next wake time, if any. Sleepers are
+     * kept in a heap ordered by wake time, so only the threads woken are
+     * touched.
+     */
+    private void wakeSleepers() {
         long currentTime = Machine.timer().getTime();
 
-         for (Map.Entry<KThread, Long> entry : threadMap.entrySet()) {
-             KThread thread = entry.getKey();
-             Long value = entry.getValue();
+        while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= currentTime)
+            sleepers.poll().thread.ready();
 
-             if (value <= currentTime){
-                 thread.ready();
-                 threadMap.remove(thread);
-             }
-         }
+        if (sleepers.isEmpty())
+            oneShotTime = Long.MAX_VALUE;
+        else
+            scheduleOneShot(sleepers.peek().wakeTime);
+    }
 
-	    KThread.yield();
+    private void scheduleOneShot(long time) {
+        oneShotTime = time;
+        Machine.timer().scheduleOneShot(time);
     }
 
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * waking it up in a timer interrupt handler. The thread is woken up
+     * (placed in the scheduler ready set) by a one-shot timer interrupt at
+     * exactly
      *
      * <p><blockquote>
-     * (current time) >= (WaitUntil called time)+(x)
+     * (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * <p>
+     * or, failing that, during the first periodic timer interrupt after it.
+     *
      * @param	x	the minimum number of clock ticks to wait.
      *
      * @see	nachos.machine.Timer#getTime()
      */
-
     public void waitUntil(long x) {
+        if (x <= 0)
+            return;
+
+        long wakeTime = Machine.timer().getTime() + x;
+
+        boolean intStatus = Machine.interrupt().disable();
 
-        //long wakeTime = Machine.timer().getTime() + x;
-        //while (wakeTime > Machine.timer().getTime())
-        //	KThread.yield();
-
-        //get wake time
-        if(x > 0)
-        {
-            long wakeTime = Machine.timer().getTime() + x;
-//            System.out.println(wakeTime);
-            Machine.interrupt().setStatus(false);
-            KThread currentThread = KThread.currentThread();
-            threadMap.put(currentThread, wakeTime);
-            currentThread.sleep();
-            Machine.interrupt().restore(true);
+        sleepers.add(new Sleeper(wakeTime, KThread.currentThread()));
+
+        // the earliest wake time decides when the one-shot interrupt occurs
+        if (wakeTime < oneShotTime)
+            scheduleOneShot(wakeTime);
+
+        KThread.sleep();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A thread sleeping in <tt>waitUntil()</tt>. Sleepers with the same wake
+     * time are woken in the order they went to sleep.
+     */
+    private class Sleeper implements Comparable<Sleeper> {
+        Sleeper(long wakeTime, KThread thread) {
+            this.wakeTime = wakeTime;
+            this.thread = thread;
+            this.id = numSleepers++;
         }
 
+        public int compareTo(Sleeper sleeper) {
+            if (wakeTime != sleeper.wakeTime)
+                return (wakeTime < sleeper.wakeTime) ? -1 : 1;
+            else
+                return Long.compare(id, sleeper.id);
+        }
+
+        long wakeTime;
+        KThread thread;
+
+        private long id;
     }
 
     public static void alarmTest() {
@@ -104,5 +144,8 @@ public class Alarm {
         // Invoke your other test methods here ...
     }
 
-    final HashMap<KThread, Long> threadMap;
+    private final PriorityQueue<Sleeper> sleepers;
+    /** The time of the pending one-shot timer interrupt, if any. */
+    private long oneShotTime = Long.MAX_VALUE;
+    private long numSleepers = 0;
 }
@@ -200,9 +200,10 @@ public class KThread {
 
 	currentThread.status = statusFinished;
 
-	if(currentThread.previous != null)
-	{
-		currentThread.previous.ready();
+	if (currentThread.joinQueue != null) {
+	    KThread joiner;
+	    while ((joiner = currentThread.joinQueue.nextThread()) != null)
+		joiner.ready();
 	}
 
 	sleep();
@@ -225,7 +226,8 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Yielding thread: " + currentThread.toString());
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
@@ -251,7 +253,8 @@ public class KThread {
      */
 
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Sleeping thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -267,7 +270,8 @@ public class KThread {
      */
     public void ready() {
 
-	Lib.debug(dbgThread, "Ready thread: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Ready thread: " + toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
@@ -293,15 +297,20 @@ public class KThread {
 
 	Lib.assertTrue(this != currentThread);
 
-		Machine.interrupt().setStatus(false);
+	boolean intStatus = Machine.interrupt().disable();
 
-		if(this.status <= statusRunning)
-		{
-			this.previous = currentThread;
-			currentThread.sleep();
-		}
+	if (status != statusFinished) {
+	    // the first joiner creates the queue, held by this thread
+	    if (joinQueue == null) {
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		joinQueue.acquire(this);
+	    }
+
+	    joinQueue.waitForAccess(currentThread);
+	    sleep();
+	}
 
-		Machine.interrupt().setStatus(true);
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -318,7 +327,7 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() { idle(); }
 	});
 	idleThread.setName("idle");
 
@@ -327,6 +336,27 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * The body of the idle thread. Whenever another thread is ready, switch
+     * to it. Otherwise, halt the processor until the next interrupt, rather
+     * than spinning until it is due.
+     */
+    private static void idle() {
+	while (true) {
+	    Machine.interrupt().disable();
+
+	    KThread nextThread = readyQueue.nextThread();
+	    if (nextThread != null) {
+		currentThread.ready();
+		nextThread.run();
+	    }
+	    else
+		Machine.interrupt().idle();
+
+	    Machine.interrupt().enable();
+	}
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -366,8 +396,12 @@ public class KThread {
 
 	currentThread.saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-		  + " to: " + toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Switching from: " + currentThread.toString()
+			       + " to: " + toString());
+
+	if (Trace.contextSwitches)
+	    Trace.record(Trace.contextSwitch, currentThread.id, id);
 
 	currentThread = this;
 
@@ -382,7 +416,8 @@ public class KThread {
      */
 
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    System.out.println("Running thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -506,5 +541,11 @@ public class KThread {
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
 
-	private KThread previous = null;
+    /**
+     * The threads waiting in <tt>join()</tt> for this thread to finish, or
+     * <tt>null</tt> if no thread has joined it yet. This thread holds the
+     * queue, so a scheduler that transfers priority passes the joiners'
+     * priority on to it.
+     */
+    private ThreadQueue joinQueue = null;
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -32,7 +30,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +40,420 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).effectiveTickets;
+
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		   priority <= ticketsMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test that a thread waiting in <tt>join()</tt> transfers its tickets to
+     * the thread it joins. Does nothing unless this is the kernel's scheduler.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof LotteryScheduler))
+	    return;
+
+	final LotteryScheduler scheduler =
+	    (LotteryScheduler) ThreadedKernel.scheduler;
+	final KThread joiner = KThread.currentThread();
+
+	KThread joinee = new KThread(new Runnable() {
+		public void run() {
+		    Machine.interrupt().disable();
+
+		    KThread thread = KThread.currentThread();
+		    Lib.assertTrue(scheduler.getEffectivePriority(thread) ==
+				   scheduler.getPriority(thread) +
+				   scheduler.getEffectivePriority(joiner),
+				   "join did not transfer tickets");
+
+		    Machine.interrupt().enable();
+		}
+	    }).setName("lottery join test");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int oldTickets = scheduler.getPriority(joiner);
+	scheduler.setPriority(joiner, 10);
+	scheduler.setPriority(joinee, 3);
+
+	// keep interrupts disabled, so the joinee cannot run before the join
+	joinee.fork();
+	joinee.join();
+
+	scheduler.setPriority(joiner, oldTickets);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+     * so both holding a lottery and changing one thread's tickets take
+     * O(log n) time, where n is the number of slots. Slots freed by threads
+     * that leave the queue are reused.
+     *
+     * <p>
+     * If the queue transfers tickets, its holder receives the total of the
+     * waiting threads' effective tickets.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState next = pickNextThread();
+	    if (next == null) {
+		release();
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads. Unlike a priority queue,
+	 * the result is random, so <tt>nextThread()</tt> will not necessarily
+	 * return the same thread.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (total <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) total);
+	    else
+		ticket = Math.min((long) (Lib.random() * total), total-1);
+
+	    // find the lowest slot whose prefix sum exceeds the ticket
+	    int slot = 0;
+	    for (int bit=Integer.highestOneBit(capacity); bit>0; bit>>=1) {
+		int next = slot + bit;
+		if (next <= capacity && tree[next] <= ticket) {
+		    slot = next;
+		    ticket -= tree[next];
+		}
+	    }
+
+	    return states[slot];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<capacity; slot++) {
+		if (states[slot] != null) {
+		    System.out.print(" " + states[slot].thread + "(" +
+				     states[slot].effectiveTickets + ")");
+		}
+	    }
+	}
+
+	/**
+	 * Give a waiting thread a slot holding its effective tickets.
+	 */
+	void insert(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = freeSlots[--numFree];
+	    states[slot] = state;
+	    state.slot = slot;
+	    size++;
+
+	    add(slot, state.effectiveTickets);
+	}
+
+	/**
+	 * Take a waiting thread out of this queue.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+
+	    add(slot, -state.effectiveTickets);
+
+	    states[slot] = null;
+	    freeSlots[numFree++] = slot;
+	    size--;
+
+	    state.slot = -1;
+	    state.waitingOn = null;
+	}
+
+	/**
+	 * Add to the tickets in a slot, and pass the change on to this queue's
+	 * holder.
+	 *
+	 * @param	slot	the slot, numbered from 0.
+	 * @param	delta	the number of tickets to add.
+	 */
+	void add(int slot, long delta) {
+	    for (int i=slot+1; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+
+	    total += delta;
+
+	    if (transferPriority && holder != null)
+		holder.addDonation(delta);
+	}
+
+	/**
+	 * Take this queue away from its holder, along with the tickets it was
+	 * donating.
+	 */
+	void release() {
+	    if (holder == null)
+		return;
+
+	    if (transferPriority)
+		holder.addDonation(-total);
+
+	    holder = null;
+	}
+
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = Math.max(2*oldCapacity, 4);
+
+	    states = Arrays.copyOf(states, capacity);
+	    freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+	    for (int slot=capacity-1; slot>=oldCapacity; slot--)
+		freeSlots[numFree++] = slot;
+
+	    // rebuild the tree, in linear time
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (states[i-1] != null)
+		    tree[i] += states[i-1].effectiveTickets;
+
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that most recently acquired this queue, if any. */
+	LotteryState holder = null;
+
+	/** The total effective tickets of all waiting threads. */
+	private long total = 0;
+	private int size = 0;
+
+	private int capacity = 0;
+	/** A Fenwick tree over the slots, indexed from 1. */
+	private long[] tree = new long[1];
+	private LotteryState[] states = new LotteryState[0];
+	private int[] freeSlots = new int[0];
+	private int numFree = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its own
+     * tickets, the tickets donated to it, and the queue it's waiting in, if
+     * any.
+     *
+     * <p>
+     * The effective tickets are kept up to date incrementally. When they
+     * change, the change is added to the thread's slot in the queue it waits
+     * in, and from there to that queue's holder, and so on along the chain.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+
+	    setTickets(ticketsDefault);
+	}
+
+	/**
+	 * Set the number of tickets the associated thread holds on its own.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    addEffective(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting in the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.insert(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    waitQueue.release();
+
+	    waitQueue.holder = this;
+
+	    if (waitQueue.transferPriority)
+		addDonation(waitQueue.total);
+	}
+
+	void addDonation(long delta) {
+	    donatedTickets += delta;
+
+	    addEffective(delta);
+	}
+
+	private void addEffective(long delta) {
+	    if (delta == 0)
+		return;
+
+	    effectiveTickets += delta;
+
+	    if (waitingOn != null)
+		waitingOn.add(slot, delta);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets held by the associated thread itself. */
+	protected int tickets = 0;
+	/** The tickets donated to the associated thread. */
+	protected long donatedTickets = 0;
+	/** The sum of <tt>tickets</tt> and <tt>donatedTickets</tt>. */
+	protected long effectiveTickets = 0;
+
+	/** The queue the associated thread is waiting in, if any. */
+	LotteryQueue waitingOn = null;
+	/** The associated thread's slot in <tt>waitingOn</tt>. */
+	int slot = -1;
     }
 }
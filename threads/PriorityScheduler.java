@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -72,8 +69,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +86,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -109,6 +110,25 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /** The number of distinct priorities. */
+    private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
+    /**
+     * Return the highest level whose bit is set in the specified mask.
+     *
+     * @param	mask	a bitmap of levels.
+     * @return	the highest level in <tt>mask</tt>, or -1 if it is empty.
+     */
+    private static int highestLevel(int mask) {
+	return 31 - Integer.numberOfLeadingZeros(mask);
+    }
+
+    /**
+     * Incremented each time a thread starts waiting in a queue, so that
+     * threads of equal priority can be served in the order they arrived.
+     */
+    private long numWaits = 0;
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -124,6 +144,17 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO list per effective priority, and
+     * a bitmap records which lists are non-empty, so the highest priority
+     * waiting thread is found with a single bit scan. Since a thread only
+     * ever waits in one queue at a time, the lists are linked through the
+     * waiting threads' <tt>ThreadState</tt>s.
+     *
+     * <p>
+     * If the queue transfers priority, the priority it donates to its holder
+     * is simply the highest effective priority of any waiting thread.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +173,21 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		release();
+		return null;
+	    }
+
+	    int oldTop = highestLevel(occupied);
+	    remove(next);
+	    next.waitingOn = null;
+	    topChanged(oldTop);
+
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +198,129 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (occupied == 0)
+		return null;
+
+	    return heads[highestLevel(occupied)];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=numLevels-1; level>=0; level--) {
+		for (ThreadState state=heads[level]; state!=null;
+		     state=state.next) {
+		    System.out.print(" " + state.thread + "(" +
+				     state.effectivePriority + ")");
+		}
+	    }
+	}
+
+	/**
+	 * Return the priority this queue donates to its holder.
+	 *
+	 * @return	the highest effective priority of any waiting thread, or
+	 *		-1 if no thread is waiting.
+	 */
+	int donation() {
+	    int top = highestLevel(occupied);
+
+	    return (top < 0) ? -1 : top + priorityMinimum;
+	}
+
+	/**
+	 * Add a waiting thread to the list for its effective priority, behind
+	 * any threads of the same priority that have been waiting longer.
+	 */
+	void insert(ThreadState state) {
+	    int level = state.effectivePriority - priorityMinimum;
+
+	    ThreadState after = tails[level];
+	    while (after != null && after.waitNumber > state.waitNumber)
+		after = after.prev;
+
+	    state.prev = after;
+	    if (after == null) {
+		state.next = heads[level];
+		heads[level] = state;
+	    }
+	    else {
+		state.next = after.next;
+		after.next = state;
+	    }
+
+	    if (state.next == null)
+		tails[level] = state;
+	    else
+		state.next.prev = state;
+
+	    occupied |= 1 << level;
+	}
+
+	/**
+	 * Remove a waiting thread from the list for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.effectivePriority - priorityMinimum;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    state.prev = state.next = null;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority is about to change
+	 * to the list for its new effective priority.
+	 *
+	 * @param	state		the waiting thread.
+	 * @param	newPriority	its new effective priority.
+	 */
+	void reposition(ThreadState state, int newPriority) {
+	    int oldTop = highestLevel(occupied);
+
+	    remove(state);
+	    state.effectivePriority = newPriority;
+	    insert(state);
+
+	    topChanged(oldTop);
+	}
+
+	/**
+	 * Pass a change in this queue's highest waiting priority on to its
+	 * holder, if this queue transfers priority.
+	 *
+	 * @param	oldTop	the highest occupied level before the change.
+	 */
+	void topChanged(int oldTop) {
+	    int newTop = highestLevel(occupied);
+
+	    if (transferPriority && holder != null && newTop != oldTop)
+		holder.changeDonation(oldTop, newTop);
+	}
+
+	/**
+	 * Take this queue away from its holder, along with any priority it
+	 * was donating.
+	 */
+	void release() {
+	    if (holder == null)
+		return;
+
+	    if (transferPriority)
+		holder.changeDonation(highestLevel(occupied), -1);
+
+	    holder = null;
 	}
 
 	/**
@@ -168,6 +328,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that most recently acquired this queue, if any. */
+	ThreadState holder = null;
+
+	private ThreadState[] heads = new ThreadState[numLevels];
+	private ThreadState[] tails = new ThreadState[numLevels];
+	/** Bit <i>i</i> is set if the list for level <i>i</i> is non-empty. */
+	private int occupied = 0;
     }
 
     /**
@@ -175,6 +343,14 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Rather than remembering the queues it
+     * holds, a thread keeps a count of how many of them donate each
+     * priority, so a change in one queue's donation is an O(1) update. A
+     * change in effective priority is then pushed to the queue the thread is
+     * waiting in, and from there to that queue's holder, stopping as soon as
+     * some effective priority along the chain does not change.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -205,8 +381,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +395,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +411,14 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitNumber = numWaits++;
+
+	    int oldTop = highestLevel(waitQueue.occupied);
+	    waitQueue.insert(this);
+	    waitQueue.topChanged(oldTop);
 	}
 
 	/**
@@ -250,12 +432,73 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    waitQueue.release();
+
+	    waitQueue.holder = this;
+
+	    if (waitQueue.transferPriority)
+		changeDonation(-1, highestLevel(waitQueue.occupied));
 	}	
 
+	/**
+	 * Replace one donation from a queue this thread holds with another.
+	 *
+	 * @param	oldLevel	the level the queue used to donate, or -1.
+	 * @param	newLevel	the level the queue now donates, or -1.
+	 */
+	void changeDonation(int oldLevel, int newLevel) {
+	    if (oldLevel >= 0 && --donations[oldLevel] == 0)
+		donationMask &= ~(1 << oldLevel);
+
+	    if (newLevel >= 0 && donations[newLevel]++ == 0)
+		donationMask |= 1 << newLevel;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority and, if it changed, pass the change
+	 * on to the queue this thread is waiting in.
+	 */
+	void updateEffectivePriority() {
+	    int newPriority = priority;
+
+	    int donated = highestLevel(donationMask);
+	    if (donated >= 0 && donated + priorityMinimum > newPriority)
+		newPriority = donated + priorityMinimum;
+
+	    if (newPriority == effectivePriority)
+		return;
+
+	    if (waitingOn != null)
+		waitingOn.reposition(this, newPriority);
+	    else
+		effectivePriority = newPriority;
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
-	protected int priority;
+	protected int priority = -1;
+	/**
+	 * The effective priority of the associated thread: the higher of its
+	 * priority and any priority donated to it.
+	 */
+	protected int effectivePriority = -1;
+
+	/**
+	 * For each level, the number of held queues whose highest waiting
+	 * priority is that level.
+	 */
+	private int[] donations = new int[numLevels];
+	/** Bit <i>i</i> is set if <tt>donations[i]</tt> is non-zero. */
+	private int donationMask = 0;
+
+	/** The queue the associated thread is waiting in, if any. */
+	PriorityQueue waitingOn = null;
+	/** Orders threads of equal priority within <tt>waitingOn</tt>. */
+	long waitNumber;
+	/** Neighbours in <tt>waitingOn</tt>'s list for this priority. */
+	ThreadState prev = null, next = null;
     }
 }
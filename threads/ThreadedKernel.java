@@ -47,6 +47,7 @@ public class ThreadedKernel extends Kernel {
      */	
     public void selfTest() {
     KThread.selfTest();
+    LotteryScheduler.selfTest();
     Condition2.selfTest();
     Alarm.selfTest();
     Communicator.selfTest();
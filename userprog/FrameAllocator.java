@@ -0,0 +1,256 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which frames of physical memory are free.
+ *
+ * <p>
+ * Free frames are marked by set bits in a bitmap, 64 frames to a word, so
+ * allocating or freeing many frames at once touches only a few words. Frames
+ * can be allocated one at a time, in bulk, or as a contiguous range.
+ *
+ * <p>
+ * The allocator never blocks, so it is made atomic by disabling interrupts
+ * rather than with a lock.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+	freeMap = new long[(numFrames + 63) / 64];
+
+	setRange(0, numFrames);
+	numFree = numFrames;
+    }
+
+    /**
+     * Return the number of frames that are free.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Allocate one frame.
+     *
+     * @return	the frame's physical page number, or <tt>-1</tt> if there are
+     *		no free frames.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numFree == 0) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	int word = hint;
+	while (freeMap[word] == 0)
+	    word = (word+1) % freeMap.length;
+
+	long bits = freeMap[word];
+	int ppn = word*64 + Long.numberOfTrailingZeros(bits);
+	freeMap[word] = bits & (bits-1);
+	hint = word;
+	numFree--;
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Allocate the specified number of frames, not necessarily contiguous.
+     * Either all of the frames are allocated, or none are.
+     *
+     * @param	ppns	the array in which to store the frames' physical page
+     *			numbers.
+     * @param	offset	the first element of <tt>ppns</tt> to store.
+     * @param	count	the number of frames to allocate.
+     * @return	<tt>true</tt> if the frames were allocated.
+     */
+    public boolean allocate(int[] ppns, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= ppns.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > numFree) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	int word = hint;
+	for (int found=0; found<count; word=(word+1)%freeMap.length) {
+	    long bits = freeMap[word];
+
+	    while (bits != 0 && found < count) {
+		ppns[offset + found++] =
+		    word*64 + Long.numberOfTrailingZeros(bits);
+		bits &= bits-1;
+	    }
+
+	    freeMap[word] = bits;
+	    hint = word;
+	}
+
+	numFree -= count;
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Allocate a contiguous range of frames.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the physical page number of the first frame, or <tt>-1</tt> if
+     *		there is no free range that large.
+     */
+    public int allocateContiguous(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int start = -1;
+	int run = 0;
+
+	if (count <= numFree) {
+	    for (int ppn=0; ppn<numFrames && run<count; ) {
+		long bits = freeMap[ppn/64] >>> (ppn%64);
+
+		if ((bits & 1) == 0) {
+		    // skip the used frames, up to the end of this word
+		    ppn += (bits == 0) ? 64 - ppn%64
+				       : Long.numberOfTrailingZeros(bits);
+		    run = 0;
+		}
+		else {
+		    // the bits above the end of the word shift in as zeros,
+		    // so this run stops at the end of the word
+		    int free = Long.numberOfTrailingZeros(~bits);
+		    if (run == 0)
+			start = ppn;
+		    run += free;
+		    ppn += free;
+		}
+	    }
+	}
+
+	if (run < count) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	clearRange(start, count);
+	numFree -= count;
+
+	Machine.interrupt().restore(intStatus);
+	return start;
+    }
+
+    /**
+     * Free one frame.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public void free(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long bit = 1L << (ppn%64);
+	Lib.assertTrue((freeMap[ppn/64] & bit) == 0, "frame freed twice");
+	freeMap[ppn/64] |= bit;
+	numFree++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free the specified frames.
+     *
+     * @param	ppns	an array containing the frames' physical page numbers.
+     * @param	offset	the first element of <tt>ppns</tt> to free.
+     * @param	count	the number of frames to free.
+     */
+    public void free(int[] ppns, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= ppns.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=offset; i<offset+count; i++) {
+	    int ppn = ppns[i];
+	    Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+	    long bit = 1L << (ppn%64);
+	    Lib.assertTrue((freeMap[ppn/64] & bit) == 0, "frame freed twice");
+	    freeMap[ppn/64] |= bit;
+	}
+
+	numFree += count;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free a contiguous range of frames.
+     *
+     * @param	first	the physical page number of the first frame.
+     * @param	count	the number of frames to free.
+     */
+    public void freeContiguous(int first, int count) {
+	Lib.assertTrue(first >= 0 && count >= 0 && first+count <= numFrames);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	setRange(first, count);
+	numFree += count;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Mark a range of frames free, a word at a time.
+     */
+    private void setRange(int first, int count) {
+	for (int ppn=first; ppn<first+count; ) {
+	    int bits = Math.min(64 - ppn%64, first+count - ppn);
+	    long mask = ((bits == 64) ? -1L : (1L << bits) - 1) << (ppn%64);
+
+	    Lib.assertTrue((freeMap[ppn/64] & mask) == 0, "frame freed twice");
+	    freeMap[ppn/64] |= mask;
+	    ppn += bits;
+	}
+    }
+
+    /**
+     * Mark a range of free frames used, a word at a time.
+     */
+    private void clearRange(int first, int count) {
+	for (int ppn=first; ppn<first+count; ) {
+	    int bits = Math.min(64 - ppn%64, first+count - ppn);
+	    long mask = ((bits == 64) ? -1L : (1L << bits) - 1) << (ppn%64);
+
+	    Lib.assertTrue((freeMap[ppn/64] & mask) == mask);
+	    freeMap[ppn/64] &= ~mask;
+	    ppn += bits;
+	}
+    }
+
+    private int numFrames;
+    private int numFree;
+    /** A set bit for every free frame. */
+    private long[] freeMap;
+    /** The word where the last allocation stopped. */
+    private int hint = 0;
+}
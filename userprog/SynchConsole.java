@@ -7,6 +7,12 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is buffered. Bytes written are queued in a ring buffer, which the
+ * send interrupt drains to the console as large transfers, so writers only
+ * block when the buffer is full. <tt>flush()</tt> waits until everything
+ * queued has been sent.
  */
 public class SynchConsole {
     /**
@@ -17,13 +23,14 @@ public class SynchConsole {
     public SynchConsole(SerialConsole console) {
 	this.console = console;
 	
-	Runnable receiveHandler = new Runnable() {
+	receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
 	};
-	Runnable sendHandler = new Runnable() {
+	sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	console.setInterruptHandlers(receiveHandler, sendHandler);
+	// the receive handler is installed by the first read
+	console.setInterruptHandlers(null, sendHandler);
     }
 
     /**
@@ -40,6 +47,7 @@ public class SynchConsole {
 	int value;
 	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
+	startReceiving();
 
 	if (block || charAvailable) {
 	    charAvailable = false;
@@ -57,6 +65,37 @@ public class SynchConsole {
 	return value;
     }
 
+    /**
+     * Return the bytes that have been received, up to the end of the current
+     * line, without waiting for any to arrive.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the most bytes to return.
+     * @return	the number of bytes read, possibly 0.
+     */
+    public int readBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= buf.length);
+
+	int amount = 0;
+	boolean intStatus = Machine.interrupt().disable();
+	readLock.acquire();
+	startReceiving();
+
+	if (charAvailable && length > 0) {
+	    charAvailable = false;
+	    readWait.P();
+
+	    amount = console.readBytes(buf, offset, length);
+	    Lib.assertTrue(amount > 0);
+	}
+
+	readLock.release();
+	Machine.interrupt().restore(intStatus);
+	return amount;
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to read this as a file.
      *
@@ -66,23 +105,97 @@ public class SynchConsole {
 	return new File(true, false);
     }
 
+    /**
+     * Install the receive interrupt handler, if this is the first read. Until
+     * then the console need not watch for input at all.
+     */
+    private void startReceiving() {
+	if (!receiving) {
+	    receiving = true;
+	    console.setInterruptHandlers(receiveHandler, sendHandler);
+	}
+    }
+
     private void receiveInterrupt() {
 	charAvailable = true;
 	readWait.V();
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Blocks only if the send buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	oneByte[0] = (byte) value;
+	queueBytes(oneByte, 0, 1);
+	writeLock.release();
+    }
+
+    /**
+     * Send several bytes. Blocks only while the send buffer is full.
+     *
+     * @param	buf	the buffer containing the bytes to send.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= buf.length);
+
+	writeLock.acquire();
+	queueBytes(buf, offset, length);
 	writeLock.release();
     }
 
+    /**
+     * Wait until every byte written so far has been sent.
+     */
+    public void flush() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sendCount > 0) {
+	    writerWaiting = true;
+	    writeWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    private void queueBytes(byte[] buf, int offset, int length) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (length > 0) {
+	    while (sendCount == sendBuffer.length) {
+		writerWaiting = true;
+		writeWait.P();
+	    }
+
+	    // copy as much as fits before the buffer wraps around
+	    int tail = (sendHead + sendCount) % sendBuffer.length;
+	    int amount = Math.min(length, sendBuffer.length - sendCount);
+	    amount = Math.min(amount, sendBuffer.length - tail);
+
+	    System.arraycopy(buf, offset, sendBuffer, tail, amount);
+	    sendCount += amount;
+	    offset += amount;
+	    length -= amount;
+
+	    if (sendLength == 0)
+		startSend();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void startSend() {
+	int length = Math.min(sendCount, sendBuffer.length - sendHead);
+	sendLength = console.writeBytes(sendBuffer, sendHead, length);
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -93,17 +206,39 @@ public class SynchConsole {
     }
 
     private void sendInterrupt() {
-	writeWait.V();
+	sendHead = (sendHead + sendLength) % sendBuffer.length;
+	sendCount -= sendLength;
+	sendLength = 0;
+
+	if (sendCount > 0)
+	    startSend();
+
+	if (writerWaiting) {
+	    writerWaiting = false;
+	    writeWait.V();
+	}
     }
 
     private boolean charAvailable = false;
+    private boolean receiving = false;
 
     private SerialConsole console;
+    private Runnable receiveHandler, sendHandler;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
 
+    private byte[] sendBuffer = new byte[sendBufferSize];
+    /** The bytes queued start at <tt>sendHead</tt>, wrapping around. */
+    private int sendHead = 0, sendCount = 0;
+    /** The number of queued bytes being sent now, or 0 if none are. */
+    private int sendLength = 0;
+    private boolean writerWaiting = false;
+    private byte[] oneByte = new byte[1];
+
+    private static final int sendBufferSize = 4096;
+
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
@@ -120,24 +255,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.readBytes(buf, offset, length);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
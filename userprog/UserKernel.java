@@ -4,18 +4,11 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-
 /**
  * A kernel that can support multiple user processes.
  */
 public class UserKernel extends ThreadedKernel {
-	private static int offsetLen;
-	private static Lock pageLock;
-	private static int offsetMask;
-	private static LinkedList<Integer> availablePages;
-
-	/**
+    /**
      * Allocate a new user kernel.
      */
     public UserKernel() {
@@ -32,16 +25,8 @@ public class UserKernel extends ThreadedKernel {
 	console = new SynchConsole(Machine.console());
 	
 	Machine.processor().setExceptionHandler(this::exceptionHandler);
-		for (offsetLen = 0; ; offsetLen++)
-			if ((Processor.pageSize >> offsetLen) == 1) {
-				offsetMask = (1 << offsetLen) - 1;
-				break;
-			}
-		pageLock = new Lock();
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		availablePages = new LinkedList<Integer>();
-		for (int i = 0; i < numPhysPages; ++i)
-			availablePages.add(i);
+
+	frames = new FrameAllocator(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -61,6 +46,7 @@ public class UserKernel extends ThreadedKernel {
 	}
 	while (c != 'q');
 
+	console.flush();
 	System.out.println("");
     }
 
@@ -119,28 +105,57 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	console.flush();
+
 	super.terminate();
     }
 
+    /**
+     * Free a page of physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt>.
+     */
     protected static boolean deletePage(int ppn) {
+	frames.free(ppn);
+	return true;
+    }
 
-    	pageLock.acquire();
-		availablePages.add(ppn);
-		pageLock.release();
-
-		return true;
-	}
+    /**
+     * Allocate a page of physical memory.
+     *
+     * @return	the physical page number, or <tt>-1</tt> if memory is full.
+     */
+    protected static int newPage() {
+	return frames.allocate();
+    }
 
-	protected static int newPage() {
-		int ret = -1;
+    /**
+     * Allocate several pages of physical memory at once. Either all of them
+     * are allocated, or none are.
+     *
+     * @param	ppns	the array in which to store the physical page numbers.
+     * @param	offset	the first element of <tt>ppns</tt> to store.
+     * @param	count	the number of pages to allocate.
+     * @return	<tt>true</tt> if the pages were allocated.
+     */
+    protected static boolean newPages(int[] ppns, int offset, int count) {
+	return frames.allocate(ppns, offset, count);
+    }
 
-		pageLock.acquire();
-		if (availablePages.size() > 0)
-			ret = availablePages.removeFirst();
-		pageLock.release();
+    /**
+     * Free several pages of physical memory at once.
+     *
+     * @param	ppns	an array containing the physical page numbers.
+     * @param	offset	the first element of <tt>ppns</tt> to free.
+     * @param	count	the number of pages to free.
+     */
+    protected static void deletePages(int[] ppns, int offset, int count) {
+	frames.free(ppns, offset, count);
+    }
 
-		return ret;
-	}
+    /** The free frames of physical memory. */
+    protected static FrameAllocator frames;
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
@@ -41,10 +41,9 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, 0, false, false, false, false);
+        // the page table grows as allocate() maps pages, so it is the size
+        // of the address space rather than of physical memory
+        pageTable = new int[0];
 
         descriptors = new OpenFile[descriptorSize];
         boolean intrpt = Machine.interrupt().disable();
@@ -171,13 +170,9 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-//        if (vaddr < 0 || vaddr >= memory.length)
-//            return 0;
-
-        int amount = Math.min(length, memory.length - vaddr);
+        int amount = 0;
 
         int i1 = 0;
         int endVAddr = vaddr + length - 1;
@@ -187,7 +182,8 @@ public class UserProcess {
         for (int i = vaddr; i <= endVAddr ; i+=amount) {
             stVPage = Processor.pageFromAddress(i);
 
-            if(stVPage<0 || stVPage >= pageTable.length || pageTable[stVPage] == null || !pageTable[stVPage].valid){
+            int ppn = translate(stVPage);
+            if (ppn == -1) {
                 return i1;
             }
 
@@ -197,10 +193,8 @@ public class UserProcess {
 
             amount = endVPage - i + 1;
 
-            int ppn = pageTable[stVPage].ppn;
-
-            int stPAddr = Processor.makeAddress(ppn,Processor.offsetFromAddress(i));
-            System.arraycopy(memory,stPAddr,data,offset,amount);
+            long stPAddr = (long) ppn*pageSize + Processor.offsetFromAddress(i);
+            memory.read(stPAddr,data,offset,amount);
             offset = amount + offset;
             i1 = amount + i1;
 
@@ -240,13 +234,9 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
-
-        // for now, just assume that virtual addresses equal physical addresses
-//        if (vaddr < 0 || vaddr >= memory.length)
-//            return 0;
+        PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 
-        int amount = Math.min(length, memory.length - vaddr);
+        int amount = 0;
 
         int i1 = 0;
         int endVAddr = vaddr + length - 1;
@@ -256,7 +246,8 @@ public class UserProcess {
         for (int i = vaddr; i <= endVAddr ; i+=amount) {
             stVPage = Processor.pageFromAddress(i);
 
-            if(stVPage<0 || stVPage >= pageTable.length || pageTable[stVPage] == null || !pageTable[stVPage].valid){
+            int ppn = translate(stVPage);
+            if (ppn == -1) {
                 return i1;
             }
 
@@ -266,10 +257,8 @@ public class UserProcess {
 
             amount = endVPage - i + 1;
 
-            int ppn = pageTable[stVPage].ppn;
-
-            int stPAddr = Processor.makeAddress(ppn,Processor.offsetFromAddress(i));
-            System.arraycopy(data,offset,memory,stPAddr,amount);
+            long stPAddr = (long) ppn*pageSize + Processor.offsetFromAddress(i);
+            memory.write(stPAddr,data,offset,amount);
             offset = amount + offset;
             i1 = amount + i1;
 
@@ -362,8 +351,8 @@ public class UserProcess {
         this.argv = entryOffset;
 
         for (int i = 0; i < argv.length; i++) {
-            byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-            Lib.assertTrue(writeVirtualMemory(entryOffset, stringOffsetBytes) == 4);
+            Lib.bytesFromInt(wordBuffer, 0, stringOffset);
+            Lib.assertTrue(writeVirtualMemory(entryOffset, wordBuffer) == 4);
             entryOffset += 4;
             Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
                     argv[i].length);
@@ -399,14 +388,11 @@ public class UserProcess {
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
 
-                // for now, just assume virtual addresses=physical addresses
-                TranslationEntry te = null;
-                if (vpn >= 0 && vpn < pageTable.length)
-                    te = pageTable[vpn];
-                if (te == null)
+                int ppn = translate(vpn);
+                if (ppn == -1)
                     return false;
 //				if(section.isReadOnly()) te.readOnly = true;
-                section.loadPage(i, te.ppn);
+                section.loadPage(i, ppn);
             }
         }
 
@@ -455,8 +441,8 @@ public class UserProcess {
      * Handle the halt() system call.
      */
     private int handleHalt() {
-
-        Machine.halt();
+        // the kernel flushes the console and removes the swap file
+        Kernel.kernel.terminate();
 
         Lib.assertNotReached("Machine.halt() did not halt machine!");
         return 0;
@@ -542,16 +528,14 @@ public class UserProcess {
             return -1;
         }
         String[] pages=new String[numofPages];
-        byte[] buffer;
         int readLength;
         for(int i=0;i<numofPages;i++){
-            buffer=new byte[4];
-            readLength=readVirtualMemory((4*i)+startVAddr,buffer);
+            readLength=readVirtualMemory((4*i)+startVAddr,wordBuffer);
             if(readLength!=4){
                 Lib.debug(dbgProcess, "Error in function handleExec - Reading Coff file failed");
                 return -1;
             }
-            int intAddress=Lib.bytesToInt(buffer, 0);
+            int intAddress=Lib.bytesToInt(wordBuffer, 0);
             String arg=readVirtualMemoryString(intAddress,256);
             if(arg == null){
                 Lib.debug(dbgProcess, "Error in function handleExec - Reading .Coff file failed");
@@ -599,9 +583,8 @@ public class UserProcess {
             return 0;
         } else {
             //status int 32bits
-            byte[] buffer = new byte[4];
-            buffer = Lib.bytesFromInt(status);
-            int count = writeVirtualMemory(vAddr, buffer);
+            Lib.bytesFromInt(wordBuffer, 0, status);
+            int count = writeVirtualMemory(vAddr, wordBuffer);
             if (count != 0x4) {
                 Lib.debug(dbgProcess, "Error in function handleJoin - child thread termination status writing error");
                 return 0;
@@ -613,6 +596,9 @@ public class UserProcess {
     }
 
     private int handleExit(int a0) {
+        // everything the process printed is sent before it is gone
+        UserKernel.console.flush();
+
         if (parent != null) {
             statusLock.acquire();
             parent.childrenExitStatus.put(pID, a0);
@@ -652,14 +638,24 @@ public class UserProcess {
 
         writeFile = descriptors[descriptorIndex];
 
-        int length = 0;
-        byte[] writer = new byte[size];
-        length = readVirtualMemory(vaddr, writer, 0, size);
+        // copy a page at a time, so each chunk comes from a single frame
         int count = 0;
-        count = writeFile.write(writer, 0, length);
-        if (count == -1) {
-            Lib.debug(dbgProcess, "Error in function handleWrite() - Unknown Error occurred while writing file");
-            return -1;
+        while (count < size) {
+            int chunk = Math.min(size - count,
+                    pageSize - Processor.offsetFromAddress(vaddr + count));
+            int length = readVirtualMemory(vaddr + count, ioBuffer, 0, chunk);
+            if (length == 0)
+                break;
+
+            int written = writeFile.write(ioBuffer, 0, length);
+            if (written == -1) {
+                Lib.debug(dbgProcess, "Error in function handleWrite() - Unknown Error occurred while writing file");
+                return (count > 0) ? count : -1;
+            }
+            count += written;
+
+            if (written < chunk)
+                break;
         }
         return count;
     }
@@ -680,15 +676,29 @@ public class UserProcess {
 
         readFile = descriptors[descriptorIndex];
 
-        int length = 0;
-        byte[] reader = new byte[size];
-        length = readFile.read(reader, 0, size);
-        if (length == -1) {
-            Lib.debug(dbgProcess, "Error in function handleRead - Unknown Error occurred while reading file");
-            return -1;
-        }
+        // copy a page at a time, so each chunk goes to a single frame
         int count = 0;
-        count = writeVirtualMemory(vaddr, reader, 0, length);
+        while (count < size) {
+            int chunk = Math.min(size - count,
+                    pageSize - Processor.offsetFromAddress(vaddr + count));
+
+            // stop at an unmapped page before taking its chunk from the file
+            if (!isMapped(Processor.pageFromAddress(vaddr + count)))
+                break;
+
+            int length = readFile.read(ioBuffer, 0, chunk);
+            if (length == -1) {
+                Lib.debug(dbgProcess, "Error in function handleRead - Unknown Error occurred while reading file");
+                return (count > 0) ? count : -1;
+            }
+
+            int written = writeVirtualMemory(vaddr + count, ioBuffer, 0, length);
+            count += written;
+
+            // stop at the end of the file
+            if (length < chunk || written < length)
+                break;
+        }
         return count;
     }
 
@@ -722,41 +732,79 @@ public class UserProcess {
         }
     }
 
-    private boolean allocate(int vpn, int desiredPages, boolean readOnly) {
-        List<TranslationEntry> allocated = new ArrayList<>();
+    /**
+     * Return the physical page a virtual page is mapped to.
+     *
+     * @param vpn the virtual page number.
+     * @return the physical page number, or -1 if <tt>vpn</tt> is not mapped.
+     */
+    protected int translate(int vpn) {
+        if (vpn < 0 || vpn >= pageTable.length ||
+                !TranslationEntry.isValid(pageTable[vpn]))
+            return -1;
 
-        for (int i = 0; i < desiredPages; ++i) {
-            if (vpn >= pageTable.length)
-                return false;
+        return TranslationEntry.packedPPN(pageTable[vpn]);
+    }
 
-            int ppn = UserKernel.newPage();
-            if (ppn == -1) {
-                Lib.debug(dbgProcess, "\tcannot allocate new page");
+    /**
+     * Return true if <tt>writeVirtualMemory()</tt> can copy to a virtual page.
+     *
+     * @param vpn the virtual page number.
+     * @return <tt>true</tt> if <tt>vpn</tt> is mapped.
+     */
+    protected boolean isMapped(int vpn) {
+        return translate(vpn) != -1;
+    }
 
-                for (TranslationEntry te: allocated) {
-                    pageTable[te.vpn] = new TranslationEntry(te.vpn, 0, false, false, false, false);
-                    UserKernel.deletePage(te.ppn);
-                    numPages-=1;
-                }
+    /**
+     * Return a copy of the page table entry for a virtual page.
+     *
+     * @param vpn the virtual page number.
+     * @return a new translation entry for <tt>vpn</tt>.
+     */
+    protected TranslationEntry getEntry(int vpn) {
+        return TranslationEntry.unpack(vpn, pageTable[vpn]);
+    }
 
-                return false;
-            } else {
-                TranslationEntry a = new TranslationEntry(vpn + i,
-                        ppn, true, readOnly, false,false);
-                allocated.add(a);
-                pageTable[vpn + i] = a;
-                ++numPages;
-            }
+    /**
+     * Map <tt>desiredPages</tt> more virtual pages, starting at <tt>vpn</tt>,
+     * and add them to <tt>numPages</tt>. Called by <tt>load()</tt> for each
+     * COFF section, the stack and the argument page, in that order.
+     *
+     * @param vpn          the first virtual page to map.
+     * @param desiredPages the number of pages to map.
+     * @param readOnly     <tt>true</tt> if the pages are read-only.
+     * @return <tt>true</tt> if the pages were mapped.
+     */
+    protected boolean allocate(int vpn, int desiredPages, boolean readOnly) {
+        // claim all of the frames in one go, so there is nothing to undo
+        int[] ppns = new int[desiredPages];
+        if (!UserKernel.newPages(ppns, 0, desiredPages)) {
+            Lib.debug(dbgProcess, "\tcannot allocate new page");
+            return false;
         }
+
+        if (vpn + desiredPages > pageTable.length)
+            pageTable = Arrays.copyOf(pageTable, vpn + desiredPages);
+
+        for (int i = 0; i < desiredPages; ++i)
+            pageTable[vpn + i] = TranslationEntry.pack(ppns[i], true, readOnly,
+                    false, false);
+        numPages += desiredPages;
+
         return true;
     }
 
     private void releaseResource() {
+        int[] ppns = new int[pageTable.length];
+        int count = 0;
+
         for (int i = 0; i < pageTable.length; ++i)
-            if (pageTable[i].valid) {
-                UserKernel.deletePage(pageTable[i].ppn);
-                pageTable[i] = new TranslationEntry(pageTable[i].vpn, 0, false, false, false, false);
+            if (TranslationEntry.isValid(pageTable[i])) {
+                ppns[count++] = TranslationEntry.packedPPN(pageTable[i]);
+                pageTable[i] = 0;
             }
+        UserKernel.deletePages(ppns, 0, count);
         numPages = 0;
     }
 
@@ -766,9 +814,10 @@ public class UserProcess {
     protected Coff coff;
 
     /**
-     * This process's page table.
+     * This process's page table, indexed by virtual page number. Each entry
+     * is packed by <tt>TranslationEntry.pack()</tt>; 0 is an invalid entry.
      */
-    protected TranslationEntry[] pageTable;
+    protected int[] pageTable;
     /**
      * The number of contiguous pages occupied by the program.
      */
@@ -779,6 +828,16 @@ public class UserProcess {
      */
     protected final int stackPages = 8;
 
+    /**
+     * Scratch space for marshalling one word to or from user memory.
+     */
+    private final byte[] wordBuffer = new byte[4];
+    /**
+     * Scratch space for moving one page of data between a file and user
+     * memory in <tt>read()</tt> and <tt>write()</tt>.
+     */
+    private final byte[] ioBuffer = new byte[pageSize];
+
     private int initialPC, initialSP;
     private int argc, argv;
 
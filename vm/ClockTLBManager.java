@@ -0,0 +1,29 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB manager that sweeps a clock hand over the TLB, giving each entry
+ * whose used bit is set a second chance. The hand clears every used bit it
+ * passes, so it never has to go round more than twice.
+ */
+public class ClockTLBManager extends TLBManager {
+    /**
+     * Allocate a new clock TLB manager.
+     */
+    public ClockTLBManager() {
+    }
+
+    protected int chooseVictim(VMProcess process) {
+	while (true) {
+	    int slot = hand;
+	    hand = (hand+1) % tlbSize;
+
+	    if (!clearUsed(process, slot))
+		return slot;
+	}
+    }
+
+    /** The next entry the clock will look at. */
+    private int hand = 0;
+}
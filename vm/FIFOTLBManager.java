@@ -0,0 +1,34 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB manager that replaces the entry that was loaded longest ago,
+ * however recently it was used.
+ */
+public class FIFOTLBManager extends TLBManager {
+    /**
+     * Allocate a new FIFO TLB manager.
+     */
+    public FIFOTLBManager() {
+	filledAt = new long[tlbSize];
+    }
+
+    protected int chooseVictim(VMProcess process) {
+	int victim = 0;
+	for (int i=1; i<tlbSize; i++) {
+	    if (filledAt[i] < filledAt[victim])
+		victim = i;
+	}
+
+	return victim;
+    }
+
+    protected void filled(int slot) {
+	filledAt[slot] = ++numFills;
+    }
+
+    /** The order in which each entry was last loaded. */
+    private long[] filledAt;
+    private long numFills = 0;
+}
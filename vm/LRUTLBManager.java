@@ -0,0 +1,44 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB manager that approximates least recently used replacement by aging.
+ * Each entry has an age register. On every replacement, each register is
+ * shifted right, the entry's used bit is shifted in at the top, and the used
+ * bit is cleared. The entry with the smallest register was used least
+ * recently, to within one replacement's resolution, and is replaced.
+ */
+public class LRUTLBManager extends TLBManager {
+    /**
+     * Allocate a new LRU TLB manager.
+     */
+    public LRUTLBManager() {
+	ages = new int[tlbSize];
+    }
+
+    protected int chooseVictim(VMProcess process) {
+	int victim = 0;
+
+	for (int i=0; i<tlbSize; i++) {
+	    ages[i] >>>= 1;
+	    if (clearUsed(process, i))
+		ages[i] |= recent;
+
+	    if (Integer.compareUnsigned(ages[i], ages[victim]) < 0)
+		victim = i;
+	}
+
+	return victim;
+    }
+
+    protected void filled(int slot) {
+	// a new entry counts as just used
+	ages[slot] = recent;
+    }
+
+    private static final int recent = 0x80000000;
+
+    /** The age register of each entry, compared as unsigned. */
+    private int[] ages;
+}
@@ -0,0 +1,19 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A TLB manager that replaces a random entry. Needs no state, and is immune
+ * to any pattern in the references, but pays no attention to them either.
+ */
+public class RandomTLBManager extends TLBManager {
+    /**
+     * Allocate a new random TLB manager.
+     */
+    public RandomTLBManager() {
+    }
+
+    protected int chooseVictim(VMProcess process) {
+	return Lib.random(tlbSize);
+    }
+}
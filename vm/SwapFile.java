@@ -0,0 +1,241 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * The swap file, where dirty pages go when they are evicted.
+ *
+ * <p>
+ * The file is divided into page-sized slots. Slots in use are marked by set
+ * bits in a bitmap, which grows as the file does, and a freed slot is reused
+ * before the file is made any longer.
+ *
+ * <p>
+ * Pages are written out asynchronously. <tt>write()</tt> only copies the page
+ * out of its frame and queues it, so the frame can be reused at once, and a
+ * pageout thread writes queued pages to the file in the order they were
+ * queued. Until a page has reached the file, <tt>read()</tt> takes it
+ * straight from the queued copy. At most <tt>maxPendingWrites</tt> pages are
+ * queued at once; <tt>write()</tt> waits for room after that.
+ */
+public class SwapFile {
+    /**
+     * Open the swap file, emptying it.
+     *
+     * @param	fileSystem	the file system to keep the swap file in.
+     * @param	name		the name of the swap file.
+     */
+    public SwapFile(FileSystem fileSystem, String name) {
+	this.fileSystem = fileSystem;
+	this.name = name;
+
+	file = fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "could not open swap file");
+
+	lock = new Lock();
+	queued = new Condition(lock);
+	written = new Condition(lock);
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocateSlot() {
+	lock.acquire();
+
+	int slot = -1;
+	for (int i=0; i<usedMap.length; i++) {
+	    int word = (hint + i) % usedMap.length;
+	    if (usedMap[word] != -1L) {
+		slot = word*64 + Long.numberOfTrailingZeros(~usedMap[word]);
+		hint = word;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    slot = usedMap.length * 64;
+	    hint = usedMap.length;
+	    usedMap = Arrays.copyOf(usedMap, Math.max(usedMap.length*2, 1));
+	}
+
+	usedMap[slot/64] |= 1L << (slot%64);
+
+	lock.release();
+	return slot;
+    }
+
+    /**
+     * Free a slot.
+     *
+     * @param	slot	the slot number.
+     */
+    public void freeSlot(int slot) {
+	lock.acquire();
+
+	long bit = 1L << (slot%64);
+	Lib.assertTrue((usedMap[slot/64] & bit) != 0, "swap slot freed twice");
+	usedMap[slot/64] &= ~bit;
+
+	lock.release();
+    }
+
+    /**
+     * Queue a frame to be written to a slot. Returns as soon as the frame
+     * has been copied, so the frame can be reused.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the frame's physical page number.
+     */
+    public void write(int slot, int ppn) {
+	byte[] page = new byte[pageSize];
+	Machine.processor().getPhysicalMemory().read((long) ppn*pageSize,
+						     page, 0, pageSize);
+
+	lock.acquire();
+
+	if (pageoutThread == null) {
+	    pageoutThread = new KThread(new Runnable() {
+		    public void run() { pageout(); }
+		}).setName("pageout");
+	    pageoutThread.fork();
+	}
+
+	while (pendingWrites.size() >= maxPendingWrites)
+	    written.sleep();
+
+	PendingWrite write = new PendingWrite(slot, page);
+	pendingWrites.add(write);
+	pendingSlots.put(slot, write);
+	queued.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Copy a slot into a frame.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the frame's physical page number.
+     */
+    public void read(int slot, int ppn) {
+	byte[] page;
+
+	lock.acquire();
+	PendingWrite write = pendingSlots.get(slot);
+	lock.release();
+
+	if (write != null) {
+	    page = write.page;
+	}
+	else {
+	    page = new byte[pageSize];
+	    Lib.assertTrue(file.read(slot*pageSize, page, 0, pageSize)
+			   == pageSize);
+	}
+
+	Machine.processor().getPhysicalMemory().write((long) ppn*pageSize,
+						      page, 0, pageSize);
+    }
+
+    /**
+     * Close and remove the swap file. A page the pageout thread is writing
+     * is finished first, but pages still queued are dropped without being
+     * written: this is only called as the kernel terminates, when no process
+     * is left to read them back, and the file is removed anyway.
+     */
+    public void close() {
+	lock.acquire();
+	closed = true;
+	queued.wakeAll();
+	while (writing)
+	    written.sleep();
+	lock.release();
+
+	file.close();
+	fileSystem.remove(name);
+    }
+
+    /**
+     * The pageout thread. Writes queued pages to the file, oldest first.
+     */
+    private void pageout() {
+	lock.acquire();
+
+	while (true) {
+	    while (pendingWrites.isEmpty() && !closed)
+		queued.sleep();
+
+	    if (closed)
+		break;
+
+	    // leave the page queued while it is written, so it can still be
+	    // read back
+	    PendingWrite write = pendingWrites.getFirst();
+	    writing = true;
+	    lock.release();
+
+	    int amount = file.write(write.slot*pageSize, write.page, 0,
+				    pageSize);
+
+	    lock.acquire();
+	    Lib.assertTrue(amount == pageSize);
+	    writing = false;
+	    pendingWrites.removeFirst();
+	    if (pendingSlots.get(write.slot) == write)
+		pendingSlots.remove(write.slot);
+	    written.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    private static class PendingWrite {
+	PendingWrite(int slot, byte[] page) {
+	    this.slot = slot;
+	    this.page = page;
+	}
+
+	int slot;
+	byte[] page;
+    }
+
+    private FileSystem fileSystem;
+    private String name;
+    private OpenFile file;
+
+    /** Guards the bitmap and the queue. */
+    private Lock lock;
+    /** Signalled when a page is queued. */
+    private Condition queued;
+    /** Signalled when a queued page has been written. */
+    private Condition written;
+
+    /** A set bit for every slot in use. */
+    private long[] usedMap = new long[0];
+    /** The word where the last slot was found. */
+    private int hint = 0;
+
+    /** The pages waiting to be written, oldest first. */
+    private LinkedList<PendingWrite> pendingWrites =
+	new LinkedList<PendingWrite>();
+    /** The newest queued page for each slot. */
+    private HashMap<Integer, PendingWrite> pendingSlots =
+	new HashMap<Integer, PendingWrite>();
+    private KThread pageoutThread = null;
+    /** <tt>true</tt> while the pageout thread is writing a page. */
+    private boolean writing = false;
+    private boolean closed = false;
+
+    /** The most pages that can be waiting to be written. */
+    private static final int maxPendingWrites = 16;
+
+    private static final int pageSize = Processor.pageSize;
+}
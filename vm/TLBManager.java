@@ -0,0 +1,118 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides where in the TLB a translation goes on a TLB miss. An empty entry
+ * is always used if there is one; otherwise the subclass chooses which
+ * entry to replace.
+ *
+ * <p>
+ * The manager is chosen by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.tlbManager</tt>, which names one of
+ * <tt>RandomTLBManager</tt>, <tt>FIFOTLBManager</tt>,
+ * <tt>ClockTLBManager</tt> and <tt>LRUTLBManager</tt>. The processor counts
+ * misses, refills and evictions in its statistics, and the manager counts the
+ * refills and evictions it made itself, which the kernel prints with the
+ * policy's name when it terminates. So policies can be compared by running
+ * the same workload under each.
+ *
+ * <p>
+ * Only the running process's TLB entries can have their used or dirty bits
+ * set, since <tt>VMProcess.saveState()</tt> clears them when it copies them
+ * to the page table. So before a manager clears or replaces an entry, it
+ * only ever has to copy the bits back for the running process.
+ */
+public abstract class TLBManager {
+    /**
+     * Allocate a new TLB manager.
+     */
+    public TLBManager() {
+	tlbSize = Machine.processor().getTLBSize();
+    }
+
+    /**
+     * Load a translation of the running process into the TLB.
+     *
+     * @param	process	the running process.
+     * @param	entry	the translation, tagged with the process's ASID.
+     */
+    public void refill(VMProcess process, TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	int slot = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		slot = i;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    slot = chooseVictim(process);
+	    process.syncTLBEntry(processor.readTLBEntry(slot));
+	    numEvictions++;
+	}
+
+	processor.writeTLBEntry(slot, entry);
+	filled(slot);
+	numRefills++;
+    }
+
+    /**
+     * Print the name of this policy, with the number of refills and
+     * evictions it made.
+     */
+    public void print() {
+	System.out.println("TLB policy " + getClass().getSimpleName()
+			   + ": refills " + numRefills
+			   + ", evictions " + numEvictions);
+    }
+
+    /**
+     * Choose a TLB entry to replace. Called only when every entry is valid.
+     *
+     * @param	process	the running process.
+     * @return	the index of the entry to replace.
+     */
+    protected abstract int chooseVictim(VMProcess process);
+
+    /**
+     * Called after a TLB entry has been loaded with a new translation.
+     *
+     * @param	slot	the index of the entry.
+     */
+    protected void filled(int slot) {
+    }
+
+    /**
+     * Test and clear the used bit of a TLB entry, first copying its bits to
+     * the page table if it belongs to the running process.
+     *
+     * @param	process	the running process.
+     * @param	slot	the index of the entry.
+     * @return	<tt>true</tt> if the used bit was set.
+     */
+    protected boolean clearUsed(VMProcess process, int slot) {
+	Processor processor = Machine.processor();
+
+	TranslationEntry entry = processor.readTLBEntry(slot);
+	if (!entry.valid || !entry.used)
+	    return false;
+
+	if (process.syncTLBEntry(entry))
+	    entry.dirty = false;
+	entry.used = false;
+	processor.writeTLBEntry(slot, entry);
+
+	return true;
+    }
+
+    /** The number of entries in the TLB. */
+    protected int tlbSize;
+
+    /** The number of translations loaded by <tt>refill()</tt>. */
+    private int numRefills = 0;
+    /** The number of those that replaced a valid entry. */
+    private int numEvictions = 0;
+}
@@ -7,6 +7,15 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps an inverted page table, with an entry for every frame of
+ * physical memory recording which process and virtual page it holds and
+ * whether it is pinned. When a page fault finds no free frame, a clock sweeps
+ * the table for a victim. A page whose used bit is set gets a second chance:
+ * its bit is cleared and the clock moves on. A dirty victim is queued to be
+ * written to the swap file, and a clean one is simply dropped, so memory can
+ * be overcommitted many times over.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +30,22 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	invertedPageTable = new Frame[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    invertedPageTable[ppn] = new Frame();
+
+	pagingLock = new Lock();
+
+	if (Machine.processor().hasTLB()) {
+	    String tlbManagerName =
+		Config.getString("VMKernel.tlbManager",
+				 "nachos.vm.RandomTLBManager");
+	    tlbManager = (TLBManager) Lib.constructObject(tlbManagerName);
+	}
+
+	swapFileName = Config.getString("VMKernel.swapFile", "nachos.swap");
     }
 
     /**
@@ -41,9 +66,184 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (tlbManager != null)
+	    tlbManager.print();
+
+	if (swapFile != null)
+	    swapFile.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a frame of physical memory for a page being faulted in,
+     * evicting another page if there are no free frames. The frame is
+     * returned pinned, and belongs to no process until <tt>mapFrame()</tt>
+     * is called. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @return	the frame's physical page number, or <tt>-1</tt> if every
+     *		frame is pinned.
+     */
+    static int allocateFrame() {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn = newPage();
+	if (ppn == -1)
+	    ppn = evict();
+
+	if (ppn != -1)
+	    pinFrame(ppn);
+
+	return ppn;
+    }
+
+    /**
+     * Record that a frame now holds a page of a process.
+     *
+     * @param	ppn	the frame's physical page number.
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page number.
+     */
+    static void mapFrame(int ppn, VMProcess process, int vpn) {
+	Frame frame = invertedPageTable[ppn];
+	frame.process = process;
+	frame.vpn = vpn;
+    }
+
+    /**
+     * Free the frames holding a process's pages, when it exits. The caller
+     * must hold <tt>pagingLock</tt>.
+     *
+     * @param	ppns	an array containing the frames' physical page numbers.
+     * @param	count	the number of frames to free.
+     */
+    static void freeFrames(int[] ppns, int count) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	for (int i=0; i<count; i++) {
+	    Frame frame = invertedPageTable[ppns[i]];
+	    Lib.assertTrue(frame.pinCount == 0);
+	    frame.process = null;
+	}
+
+	deletePages(ppns, 0, count);
+    }
+
+    /**
+     * Pin a frame, so that its page can't be evicted.
+     *
+     * @param	ppn	the frame's physical page number.
+     */
+    static void pinFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	invertedPageTable[ppn].pinCount++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Unpin a frame pinned by <tt>pinFrame()</tt>.
+     *
+     * @param	ppn	the frame's physical page number.
+     */
+    static void unpinFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(invertedPageTable[ppn].pinCount > 0);
+	invertedPageTable[ppn].pinCount--;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Choose a victim with the clock algorithm, and take its frame away from
+     * it. Pinned frames are skipped. Since every used bit the clock passes is
+     * cleared, the clock has to go round at most twice.
+     *
+     * @return	the victim's physical page number, or <tt>-1</tt> if every
+     *		frame is pinned.
+     */
+    private static int evict() {
+	// the used and dirty bits of the running process may only be in the
+	// TLB
+	UserProcess current = currentProcess();
+	if (current instanceof VMProcess && Machine.processor().hasTLB())
+	    ((VMProcess) current).syncTLB();
+
+	int numPhysPages = invertedPageTable.length;
+
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = clockHand;
+	    Frame frame = invertedPageTable[ppn];
+	    clockHand = (clockHand+1) % numPhysPages;
+
+	    if (frame.process == null || frame.pinCount > 0)
+		continue;
+
+	    if (frame.process.clearUsed(frame.vpn))
+		continue;
+
+	    VMProcess victim = frame.process;
+	    frame.process = null;
+
+	    if (Lib.test(dbgVM))
+		System.out.println("evicting vpn " + frame.vpn + " from ppn "
+				   + ppn);
+
+	    // keep the frame from being chosen again while it is copied out
+	    pinFrame(ppn);
+	    victim.evict(frame.vpn);
+	    unpinFrame(ppn);
+
+	    return ppn;
+	}
+
+	Lib.debug(dbgVM, "\tevery frame is pinned");
+	return -1;
+    }
+
+    /**
+     * Return the swap file, opening it the first time a page is written out.
+     *
+     * @return	the swap file.
+     */
+    static SwapFile getSwapFile() {
+	if (swapFile == null)
+	    swapFile = new SwapFile(fileSystem, swapFileName);
+
+	return swapFile;
+    }
+
+    /**
+     * An entry in the inverted page table.
+     */
+    private static class Frame {
+	/** The process whose page this frame holds, or <tt>null</tt>. */
+	VMProcess process = null;
+	/** The virtual page number of the page. */
+	int vpn;
+	/** The number of times this frame is pinned. */
+	int pinCount = 0;
+    }
+
+    /** Chooses where translations go on a TLB miss. */
+    static TLBManager tlbManager = null;
+
+    /**
+     * Serializes page faults, eviction and process exit, since loading or
+     * evicting a page may block on I/O.
+     */
+    static Lock pagingLock;
+
+    /** The inverted page table, indexed by physical page number. */
+    private static Frame[] invertedPageTable;
+    /** The next frame the clock will look at. */
+    private static int clockHand = 0;
+
+    private static SwapFile swapFile = null;
+    /**
+     * The name of the swap file, in the stub file system. A file left behind
+     * by a run that didn't terminate cleanly is emptied and reused.
+     */
+    private static String swapFileName;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
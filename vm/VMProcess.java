@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +24,9 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	if (Machine.processor().hasTLB())
+	    syncTLB();
     }
 
     /**
@@ -29,26 +34,207 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	Processor processor = Machine.processor();
+
+	if (!processor.hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// the TLB keeps this process's translations from last time, tagged
+	// with its ASID
+	processor.setASID(getASID());
+    }
+
+    /**
+     * Return the address space identifier that tags this process's TLB
+     * entries. Process IDs are never reused, so the process ID serves.
+     *
+     * @return	this process's ASID.
+     */
+    int getASID() {
+	return pID;
+    }
+
+    /**
+     * Map pages without giving them any memory. Each page stays invalid until
+     * it is first touched, when <tt>handlePageFault()</tt> loads it.
+     *
+     * @param	vpn		the first virtual page to map.
+     * @param	desiredPages	the number of pages to map.
+     * @param	readOnly	<tt>true</tt> if the pages are read-only.
+     * @return	<tt>true</tt> if the pages were mapped.
+     */
+    protected boolean allocate(int vpn, int desiredPages, boolean readOnly) {
+	if (vpn + desiredPages > pageTable.length)
+	    pageTable = Arrays.copyOf(pageTable, vpn + desiredPages);
+
+	if (vpn + desiredPages > swapSlots.length) {
+	    int oldLength = swapSlots.length;
+	    swapSlots = Arrays.copyOf(swapSlots, vpn + desiredPages);
+	    Arrays.fill(swapSlots, oldLength, swapSlots.length, -1);
+	}
+
+	int entry = TranslationEntry.pack(0, false, readOnly, false, false);
+	Arrays.fill(pageTable, vpn, vpn + desiredPages, entry);
+	numPages += desiredPages;
+
+	return true;
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Nothing is loaded until it is touched, so the size of the
+     * executable doesn't matter.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	int[] ppns = new int[pageTable.length];
+	int count = 0;
+
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (TranslationEntry.isValid(pageTable[vpn]))
+		ppns[count++] = TranslationEntry.packedPPN(pageTable[vpn]);
+	    pageTable[vpn] = 0;
+	}
+
+	for (int vpn=0; vpn<swapSlots.length; vpn++) {
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.getSwapFile().freeSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.freeFrames(ppns, count);
+
+	if (Machine.processor().hasTLB())
+	    Machine.processor().invalidateTLB(getASID());
+
+	VMKernel.pagingLock.release();
+
 	super.unloadSections();
     }    
 
+    /**
+     * Transfer data from this process's virtual memory to the specified array,
+     * a page at a time. Each page is faulted in if necessary, and pinned
+     * while it is copied.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to transfer from virtual memory to
+     *			the array.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	return copyVirtualMemory(vaddr, data, offset, length, false);
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, a page at a time. Each page is faulted in if necessary, pinned
+     * while it is copied, and marked dirty.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the array containing the data to transfer.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to transfer from the array to
+     *			virtual memory.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length, boolean writing) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= data.length);
+
+	int total = 0;
+
+	while (total < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + total);
+	    int amount = Math.min(length - total,
+				  pageSize - Processor.offsetFromAddress(vaddr + total));
+
+	    int ppn = pinPage(vpn);
+	    if (ppn == -1)
+		break;
+
+	    int copied;
+	    if (writing) {
+		copied = super.writeVirtualMemory(vaddr + total, data,
+						  offset + total, amount);
+		pageTable[vpn] |= TranslationEntry.packedDirty;
+	    }
+	    else {
+		copied = super.readVirtualMemory(vaddr + total, data,
+						 offset + total, amount);
+	    }
+
+	    VMKernel.unpinFrame(ppn);
+
+	    total += copied;
+	    if (copied < amount)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Return true if a virtual page is part of the address space, whether or
+     * not it is in memory right now, since <tt>writeVirtualMemory()</tt>
+     * faults it in.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if <tt>vpn</tt> can be faulted in.
+     */
+    protected boolean isMapped(int vpn) {
+	return vpn >= 0 && vpn < numPages;
+    }
+
+    /**
+     * Fault in a page if necessary, and pin it.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page could not be
+     *		brought in.
+     */
+    private int pinPage(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return -1;
+
+	// the page can't be evicted between the test and the pin, since
+	// eviction needs this thread to give up the processor
+	int entry = pageTable[vpn];
+	if (TranslationEntry.isValid(entry)) {
+	    int ppn = TranslationEntry.packedPPN(entry);
+	    VMKernel.pinFrame(ppn);
+	    return ppn;
+	}
+
+	VMKernel.pagingLock.acquire();
+	int ppn = faultIn(vpn);
+	VMKernel.pagingLock.release();
+
+	return ppn;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -61,12 +247,231 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	case Processor.exceptionTLBMiss:
+	    int vpn =
+		Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+
+	    if (!handlePageFault(vpn)) {
+		super.handleException(cause);
+		break;
+	    }
+
+	    if (cause == Processor.exceptionTLBMiss)
+		fillTLB(vpn);
+	    break;
+	    
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * Make sure a page is in memory. The first time a page is touched, it is
+     * given a frame, and either loaded from its COFF section or, for the
+     * stack and argument pages, zero-filled.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is in memory, or <tt>false</tt> if
+     *		<tt>vpn</tt> is not mapped or there is no free frame.
+     */
+    private boolean handlePageFault(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	if (TranslationEntry.isValid(pageTable[vpn]))
+	    return true;
+
+	VMKernel.pagingLock.acquire();
+	int ppn = faultIn(vpn);
+	VMKernel.pagingLock.release();
+
+	if (ppn == -1)
+	    return false;
+
+	VMKernel.unpinFrame(ppn);
+	return true;
+    }
+
+    /**
+     * Bring a page into memory, if it isn't already, and pin it. A page that
+     * was written out is read back from the swap file. Otherwise it is
+     * loaded from its COFF section or, for the stack and argument pages,
+     * zero-filled. The caller must hold <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if no frame could be found.
+     */
+    private int faultIn(int vpn) {
+	int entry = pageTable[vpn];
+	if (TranslationEntry.isValid(entry)) {
+	    int ppn = TranslationEntry.packedPPN(entry);
+	    VMKernel.pinFrame(ppn);
+	    return ppn;
+	}
+
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return -1;
+
+	if (Lib.test(dbgVM))
+	    System.out.println("page fault: vpn " + vpn + " -> ppn " + ppn);
+
+	CoffSection section = findSection(vpn);
+	if (swapSlots[vpn] != -1) {
+	    VMKernel.getSwapFile().read(swapSlots[vpn], ppn);
+	}
+	else if (section != null) {
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Machine.processor().getPhysicalMemory().fill((long) ppn*pageSize,
+							 pageSize, (byte) 0);
+	}
+
+	pageTable[vpn] = TranslationEntry.pack(ppn, true,
+					       TranslationEntry.isReadOnly(entry),
+					       true, false);
+	VMKernel.mapFrame(ppn, this, vpn);
+
+	return ppn;
+    }
+
+    /**
+     * Test and clear the used bit of a resident page, for the clock.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page was used since the last call.
+     */
+    boolean clearUsed(int vpn) {
+	int entry = pageTable[vpn];
+	pageTable[vpn] = entry & ~TranslationEntry.packedUsed;
+
+	return TranslationEntry.isUsed(entry);
+    }
+
+    /**
+     * Take a page's frame away. A dirty page is queued for the swap file; a
+     * clean one can be loaded again from wherever it came from. The caller
+     * must hold <tt>VMKernel.pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    void evict(int vpn) {
+	int entry = pageTable[vpn];
+	Lib.assertTrue(TranslationEntry.isValid(entry));
+
+	int ppn = TranslationEntry.packedPPN(entry);
+
+	// invalidate the page before writing it out, so that any access from
+	// now on faults and waits for the write to finish
+	pageTable[vpn] = TranslationEntry.pack(0, false,
+					       TranslationEntry.isReadOnly(entry),
+					       false, false);
+
+	// other processes' entries stay in the TLB too, so this one must go
+	// whether or not this process is running
+	Processor processor = Machine.processor();
+	if (processor.hasTLB()) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.asid == getASID() &&
+		    tlbEntry.vpn == vpn)
+		    processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	// only a dirty page needs writing; a clean one is still in the swap
+	// file or the executable
+	if (TranslationEntry.isDirty(entry)) {
+	    SwapFile swapFile = VMKernel.getSwapFile();
+	    if (swapSlots[vpn] == -1)
+		swapSlots[vpn] = swapFile.allocateSlot();
+	    swapFile.write(swapSlots[vpn], ppn);
+	}
+    }
+
+    /**
+     * Return the COFF section containing a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section, or <tt>null</tt> if <tt>vpn</tt> is past the end
+     *		of the executable.
+     */
+    private CoffSection findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Put the translation for a resident page in the TLB, in the entry chosen
+     * by the kernel's TLB manager.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void fillTLB(int vpn) {
+	TranslationEntry entry = getEntry(vpn);
+	entry.asid = getASID();
+	VMKernel.tlbManager.refill(this, entry);
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in this process's TLB
+     * entries back to the page table, and clear them in the TLB. The entries
+     * stay in the TLB while other processes run, so the bits they collect
+     * from now on are only those set after this call.
+     */
+    void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (syncTLBEntry(tlbEntry)) {
+		tlbEntry.used = tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of a TLB entry back to the page table, if
+     * the entry belongs to this process.
+     *
+     * @param	tlbEntry	the TLB entry.
+     * @return	<tt>true</tt> if any bits were copied.
+     */
+    boolean syncTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid || tlbEntry.asid != getASID() ||
+	    tlbEntry.vpn >= pageTable.length ||
+	    !(tlbEntry.used || tlbEntry.dirty))
+	    return false;
+
+	int entry = pageTable[tlbEntry.vpn];
+	if (!TranslationEntry.isValid(entry) ||
+	    TranslationEntry.packedPPN(entry) != tlbEntry.ppn)
+	    return false;
+
+	if (tlbEntry.used)
+	    entry |= TranslationEntry.packedUsed;
+	if (tlbEntry.dirty)
+	    entry |= TranslationEntry.packedDirty;
+	pageTable[tlbEntry.vpn] = entry;
+
+	return true;
+    }
 	
+    /**
+     * The slot in the swap file holding each virtual page, or -1 if it was
+     * never written out.
+     */
+    private int[] swapSlots = new int[0];
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';